@@ -1,5 +1,8 @@
 package br.com.cmabreu.dbuserprovider;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -27,7 +30,7 @@ import org.slf4j.LoggerFactory;
 
 import br.com.cmabreu.dbuserprovider.model.QueryConfigurations;
 import br.com.cmabreu.dbuserprovider.model.UserAdapter;
-import br.com.cmabreu.dbuserprovider.persistence.DataSourceProvider;
+import br.com.cmabreu.dbuserprovider.model.UserRow;
 import br.com.cmabreu.dbuserprovider.persistence.UserRepository;
 import br.com.cmabreu.dbuserprovider.util.PagingUtil;
 
@@ -35,17 +38,30 @@ import br.com.cmabreu.dbuserprovider.util.PagingUtil;
 public class DBUserStorageProvider implements UserStorageProvider,
                                               UserLookupProvider, UserQueryProvider, CredentialInputUpdater, CredentialInputValidator, UserRegistrationProvider {
     
+    // Prefix of the query options Keycloak passes along with the attributes of a params search.
+    private static final String SESSION_PARAM_PREFIX = "keycloak.session.";
+
     private final KeycloakSession session;
     private final ComponentModel  model;
     private final UserRepository  repository;
     private final boolean allowDatabaseToOverwriteKeycloak;
+    private final boolean useLoginQuery;
+    private final boolean useEmailQuery;
+    private final QueryConfigurations queryConfigurations;
+    // Password hashes returned by the login query in this session, by username, so isValid does not query them again.
+    private final Map<String, String> loginHashes = new HashMap<>();
+    // Cursor-backed result streams handed out in this session, closed with the session at the latest.
+    private final List<Stream<?>>     openStreams = new ArrayList<>();
     private Logger logger = LoggerFactory.getLogger( DBUserStorageProvider.class );
     
-    DBUserStorageProvider(KeycloakSession session, ComponentModel model, DataSourceProvider dataSourceProvider, QueryConfigurations queryConfigurations) {
+    DBUserStorageProvider(KeycloakSession session, ComponentModel model, UserRepository repository, QueryConfigurations queryConfigurations) {
         this.session    = session;
         this.model      = model;
-        this.repository = new UserRepository(dataSourceProvider, queryConfigurations);
+        this.repository = repository;
         this.allowDatabaseToOverwriteKeycloak = queryConfigurations.getAllowDatabaseToOverwriteKeycloak();
+        this.useLoginQuery = queryConfigurations.hasLoginQuery();
+        this.useEmailQuery = queryConfigurations.hasEmailQuery();
+        this.queryConfigurations = queryConfigurations;
     }
     
     @Override
@@ -72,7 +88,11 @@ public class DBUserStorageProvider implements UserStorageProvider,
         UserModel dbUser = user;
         // If the cache just got loaded in the last 500 millisec (i.e. probably part of the actual flow), there is no point in reloading the user.)
         if (allowDatabaseToOverwriteKeycloak && user instanceof CachedUserModel && (System.currentTimeMillis() - ((CachedUserModel) user).getCacheTimestamp()) > 500) {
-          dbUser = this.getUserById(realm, user.getId() );
+          // The login query reloads the user and its hash at once; fall back to the id lookup if the username no longer matches.
+          dbUser = useLoginQuery ? this.getUserForLogin(realm, user.getUsername()) : null;
+          if (dbUser == null || !java.util.Objects.equals(user.getId(), dbUser.getId())) {
+            dbUser = this.getUserById(realm, user.getId() );
+          }
 
           if (dbUser == null) {
             ((CachedUserModel) user).invalidate();
@@ -84,6 +104,10 @@ public class DBUserStorageProvider implements UserStorageProvider,
             ((CachedUserModel) user).invalidate();
           }
         }
+        String hash = loginHashes.get(dbUser.getUsername());
+        if (hash != null) {
+            return repository.validateCredentials(dbUser.getUsername(), cred.getChallengeResponse(), hash);
+        }
         return repository.validateCredentials(dbUser.getUsername(), cred.getChallengeResponse());
     }
     
@@ -126,6 +150,8 @@ public class DBUserStorageProvider implements UserStorageProvider,
     @Override
     public void close() {
         logger.debug("closing");
+        openStreams.forEach(Stream::close);
+        openStreams.clear();
     }
 
     @Override
@@ -150,12 +176,12 @@ public class DBUserStorageProvider implements UserStorageProvider,
     
     @Override
     public int getUsersCount(RealmModel realm, Map<String, String> params) {
-        return repository.getUsersCount(null);
+        return internalCountUsers(params);
     }
     
     @Override
     public int getUsersCount(RealmModel realm, Map<String, String> params, Set<String> groupIds) {
-        return repository.getUsersCount(null);
+        return internalCountUsers(params);
     }
     
     @Override
@@ -188,9 +214,67 @@ public class DBUserStorageProvider implements UserStorageProvider,
 	}
 
     private Stream<UserModel> internalSearchForUser(String search, RealmModel realm, PagingUtil.Pageable pageable) {
+        if (pageable == null) {
+            Stream<UserRow> users = repository.streamUsers(search);
+            openStreams.add(users);
+            return users.map(m -> new UserAdapter(session, realm, model, m, allowDatabaseToOverwriteKeycloak));
+        }
         return toUserModel(realm, repository.findUsers(search, pageable));
     }	
-    private  Stream<UserModel> toUserModel(RealmModel realm, List<Map<String, String>> users) {
+    private Stream<UserModel> internalSearchForUser(Map<String, String> params, RealmModel realm, PagingUtil.Pageable pageable) {
+        String              search     = searchTerm(params);
+        Map<String, String> attributes = attributeFilters(params);
+        if (attributes.isEmpty()) {
+            return internalSearchForUser(search, realm, pageable);
+        }
+        boolean exact = Boolean.parseBoolean(params.get(UserModel.EXACT));
+        if (pageable == null) {
+            Stream<UserRow> users = repository.streamUsersByAttributes(search, attributes, exact);
+            openStreams.add(users);
+            return users.map(m -> new UserAdapter(session, realm, model, m, allowDatabaseToOverwriteKeycloak));
+        }
+        return toUserModel(realm, repository.findUsersByAttributes(search, attributes, exact, pageable));
+    }
+
+    private int internalCountUsers(Map<String, String> params) {
+        String              search     = searchTerm(params);
+        Map<String, String> attributes = attributeFilters(params);
+        if (attributes.isEmpty()) {
+            return repository.getUsersCount(search);
+        }
+        return repository.getUsersCount(search, attributes, Boolean.parseBoolean(params.get(UserModel.EXACT)));
+    }
+
+    // The free text search of a params search, where "*" stands for every user.
+    private static String searchTerm(Map<String, String> params) {
+        String search = params.get(UserModel.SEARCH);
+        return search == null || search.trim().isEmpty() || "*".equals(search.trim()) ? null : search.trim();
+    }
+
+    // The attribute filters of a params search, leaving out Keycloak's query options (search term, exact, service accounts,
+    // enabled, email verified...) unless mapped to a column: federated users are all enabled, with their email as is.
+    private Map<String, String> attributeFilters(Map<String, String> params) {
+        Map<String, String> attributes = new HashMap<>();
+        params.forEach((name, value) -> {
+            if (value != null && (!isQueryOption(name) || queryConfigurations.isSearchableAttribute(name))) {
+                attributes.put(name, value);
+            }
+        });
+        return attributes;
+    }
+
+    private static boolean isQueryOption(String name) {
+        return name.startsWith(SESSION_PARAM_PREFIX) || UserModel.ENABLED.equals(name) || UserModel.EMAIL_VERIFIED.equals(name);
+    }
+
+    private static PagingUtil.Pageable pageable(Integer firstResult, Integer maxResults) {
+        if (maxResults == null || maxResults < 0) {
+            return null;
+        }
+        return new PagingUtil.Pageable(firstResult == null ? 0 : firstResult, maxResults);
+    }
+
+    private  Stream<UserModel> toUserModel(RealmModel realm, List<UserRow> users) {
         return users.stream()
                     .map(m -> new UserAdapter(session, realm, model, m, allowDatabaseToOverwriteKeycloak) );
     }	
@@ -210,13 +294,13 @@ public class DBUserStorageProvider implements UserStorageProvider,
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, Map<String, String> params, Integer firstResult, Integer maxResults) {
         logger.info("search for users with params (paged): realm={"+realm.getId()+"} params={"+params+"} firstResult={"+firstResult+"} maxResults={"+maxResults+"}");
-        return internalSearchForUser("dpopa", realm, null);
+        return internalSearchForUser(params, realm, pageable(firstResult, maxResults));
     }
 
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, Map<String, String> params) {
         logger.info("search for users with params: realm={"+realm.getId()+"} params={"+params+"}");
-        return internalSearchForUser("dpopa", realm, null);
+        return internalSearchForUser(params, realm, null);
     }
 
 
@@ -228,7 +312,10 @@ public class DBUserStorageProvider implements UserStorageProvider,
 
 	@Override
 	public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realm, String attrName, String attrValue) {
-		return Stream.empty();
+		logger.info("search for users by attribute: realm={"+realm.getId()+"} attribute={"+attrName+"}");
+		Stream<UserRow> users = repository.streamUsersByAttributes(null, Collections.singletonMap(attrName, attrValue), true);
+		openStreams.add(users);
+		return users.map(m -> new UserAdapter(session, realm, model, m, allowDatabaseToOverwriteKeycloak));
 	}
 
 
@@ -237,7 +324,7 @@ public class DBUserStorageProvider implements UserStorageProvider,
 	       logger.info("lookup user by id: realm={0} userId={1}", realm.getId(), id);
 	        
 	        String externalId = StorageId.externalId(id);
-	        Map<String, String> user = repository.findUserById(externalId);
+	        UserRow user = repository.findUserById(externalId);
 
 	        if (user == null) {
 	            logger.debug("findUserById returned null, skipping creation of UserAdapter, expect login error");
@@ -251,13 +338,30 @@ public class DBUserStorageProvider implements UserStorageProvider,
 	@Override
 	public UserModel getUserByUsername(RealmModel realm, String username) {
 		logger.info("lookup user by username: realm={0} username={1}", realm.getId(), username);
+		if (useLoginQuery) {
+		    return getUserForLogin(realm, username);
+		}
 	    return repository.findUserByUsername(username).map(u -> new UserAdapter(session, realm, model, u, allowDatabaseToOverwriteKeycloak)).orElse(null);
 	}
 
 
+	private UserModel getUserForLogin(RealmModel realm, String username) {
+	    return repository.findUserForLogin(username).map(u -> {
+	        UserAdapter adapter = new UserAdapter(session, realm, model, u.getUser(), allowDatabaseToOverwriteKeycloak);
+	        if (u.getPasswordHash() != null) {
+	            loginHashes.put(adapter.getUsername(), u.getPasswordHash());
+	        }
+	        return (UserModel) adapter;
+	    }).orElse(null);
+	}
+
+
 	@Override
 	public UserModel getUserByEmail(RealmModel realm, String email) {
 		logger.info("lookup user by username: realm={0} email={1}", realm.getId(), email);
+		if (useEmailQuery) {
+		    return repository.findUserByEmail(email).map(u -> new UserAdapter(session, realm, model, u, allowDatabaseToOverwriteKeycloak)).orElse(null);
+		}
 		return getUserByUsername( realm, email);
 	}
 }
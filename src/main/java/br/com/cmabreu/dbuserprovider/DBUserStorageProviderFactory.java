@@ -1,25 +1,49 @@
 package br.com.cmabreu.dbuserprovider;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.auto.service.AutoService;
 
+import br.com.cmabreu.dbuserprovider.cache.CacheEvictionPolicy;
+import br.com.cmabreu.dbuserprovider.cache.CountCache;
+import br.com.cmabreu.dbuserprovider.cache.CredentialCache;
+import br.com.cmabreu.dbuserprovider.cache.NegativeLookupFilter;
+import br.com.cmabreu.dbuserprovider.cache.SearchIndex;
+import br.com.cmabreu.dbuserprovider.cache.UserCache;
 import br.com.cmabreu.dbuserprovider.model.QueryConfigurations;
 import br.com.cmabreu.dbuserprovider.persistence.DataSourceProvider;
+import br.com.cmabreu.dbuserprovider.persistence.IdType;
+import br.com.cmabreu.dbuserprovider.persistence.PoolSettings;
+import br.com.cmabreu.dbuserprovider.persistence.QueryKind;
 import br.com.cmabreu.dbuserprovider.persistence.RDBMS;
+import br.com.cmabreu.dbuserprovider.persistence.SearchStrategy;
+import br.com.cmabreu.dbuserprovider.persistence.UserRepository;
+import br.com.cmabreu.dbuserprovider.util.Bulkhead;
+import br.com.cmabreu.dbuserprovider.util.CircuitBreaker;
+import br.com.cmabreu.dbuserprovider.util.MBeanUtil;
+import br.com.cmabreu.dbuserprovider.util.PasswordHashingExecutor;
 
 @AutoService(UserStorageProviderFactory.class)
 public class DBUserStorageProviderFactory implements UserStorageProviderFactory<DBUserStorageProvider> {
@@ -33,7 +57,8 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
     private static final String PARAMETER_HELP             = " The %s is passed as query parameter.";
     
     
-    private Map<String, ProviderConfig> providerConfigPerInstance = new HashMap<>();
+    // Components are configured lazily and independently: a slow database only delays sessions of its own component.
+    private final ConcurrentMap<String, ComponentConfig> providerConfigPerInstance = new ConcurrentHashMap<>();
     
     @Override
     public void init(Config.Scope config) {
@@ -41,52 +66,224 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
     
     @Override
     public void close() {
-        for (Map.Entry<String, ProviderConfig> pc : providerConfigPerInstance.entrySet()) {
-            pc.getValue().dataSourceProvider.close();
+        for (Map.Entry<String, ComponentConfig> pc : providerConfigPerInstance.entrySet()) {
+            pc.getValue().close(pc.getKey());
+        }
+    }
+    
+    /**
+     * Configures the stored components in the background, so the first logins after a restart find their pools
+     * already filled (and, optionally, their queries already parsed by the database).
+     */
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        Thread warmUp = new Thread(() -> warmUp(factory), "cmabreu-warm-up");
+        warmUp.setDaemon(true);
+        warmUp.start();
+    }
+    
+    private void warmUp(KeycloakSessionFactory factory) {
+        List<ComponentModel> components = new ArrayList<>();
+        try {
+            KeycloakModelUtils.runJobInTransaction(factory, session -> session.realms().getRealmsStream()
+                    .flatMap(realm -> realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName()))
+                    .filter(component -> getId().equals(component.getProviderId()))
+                    .filter(component -> new UserStorageProviderModel(component).isEnabled() && component.get("warmUp", true))
+                    .forEach(components::add));
+        } catch (Exception e) {
+            logger.warn("Could not list the components to warm up: " + e.getMessage());
+            return;
+        }
+        for (ComponentModel model : components) {
+            try {
+                long           started        = System.currentTimeMillis();
+                ProviderConfig providerConfig = providerConfig(model);
+                providerConfig.userRepository.warmUp(model.get("warmUpPrepareQueries", false));
+                logger.info("Warmed up component: id={"+model.getId()+"} name={"+model.getName()+"} millis={"+(System.currentTimeMillis() - started)+"}");
+            } catch (Exception e) {
+                logger.warn("Could not warm up component {"+model.getName()+"}: " + e.getMessage());
+            }
         }
     }
     
     @Override
     public DBUserStorageProvider create(KeycloakSession session, ComponentModel model) {
-        ProviderConfig providerConfig = providerConfigPerInstance.computeIfAbsent(model.getId(), s -> configure(model));
-        return new DBUserStorageProvider(session, model, providerConfig.dataSourceProvider, providerConfig.queryConfigurations);
+        ProviderConfig providerConfig = providerConfig(model);
+        return new DBUserStorageProvider(session, model, providerConfig.userRepository, providerConfig.queryConfigurations);
     }
     
-    private synchronized ProviderConfig configure(ComponentModel model) {
+    /**
+     * @param dataSourceProvider a new provider, or the one of the configuration being replaced: its pools are then
+     *                           swapped in place, letting queries already running on them complete
+     */
+    private ProviderConfig configure(ComponentModel model, DataSourceProvider dataSourceProvider) {
         logger.info("Creating configuration for model: id={"+model.getId()+"} name={"+model.getName()+"}");
-        ProviderConfig providerConfig = new ProviderConfig();
+        ProviderConfig providerConfig = new ProviderConfig(dataSourceProvider);
         String         user           = model.get("user");
         String         password       = model.get("password");
         String         url            = model.get("url");
         RDBMS          rdbms          = RDBMS.getByDescription(model.get("rdbms"));
-        providerConfig.dataSourceProvider.configure(url, rdbms, user, password, model.getName());
-        providerConfig.queryConfigurations = new QueryConfigurations(
-                model.get("count"),
-                model.get("listAll"),
-                model.get("findById"),
-                model.get("findByUsername"),
-                model.get("findBySearchTerm"),
-                model.get("findPasswordHash"),
-                model.get("hashFunction"),
-                rdbms,
-                model.get("allowKeycloakDelete", false),
-                model.get("allowDatabaseToOverwriteKeycloak", false)
+        PoolSettings   poolSettings   = new PoolSettings(
+                model.get("maxPoolSize", 10),
+                model.get("minIdle", 10),
+                model.get("connectionTimeout", 30000L),
+                model.get("validationTimeout", 5000L),
+                model.get("idleTimeout", 600000L),
+                model.get("maxLifetime", 1800000L),
+                model.get("keepaliveTime", 0L),
+                model.get("leakDetectionThreshold", 0L),
+                model.get("driverProperties")
         );
+        try {
+            providerConfig.queryConfigurations = new QueryConfigurations(
+                    model.get("count"),
+                    model.get("listAll"),
+                    model.get("findById"),
+                    model.get("findByUsername"),
+                    model.get("findByEmail"),
+                    model.get("findBySearchTerm"),
+                    model.get("findPasswordHash"),
+                    model.get("findUserForLogin"),
+                    model.get("hashFunction"),
+                    rdbms,
+                    model.get("allowKeycloakDelete", false),
+                    model.get("allowDatabaseToOverwriteKeycloak", false),
+                    model.get("streamFetchSize", 100),
+                    model.get("streamMaxResults", 0),
+                    model.get("keysetColumn"),
+                    model.get("approximateCountTable"),
+                    model.get("attributeColumns"),
+                    SearchStrategy.getByDescription(model.get("searchStrategy")),
+                    model.get("searchColumns"),
+                    model.get("searchMinLength", 0),
+                    IdType.getByDescription(model.get("idType"))
+            );
+            providerConfig.userCache = new UserCache(
+                    model.get("userCacheMaxSize", 0L),
+                    model.get("userCacheTtl", 30L),
+                    CacheEvictionPolicy.getByDescription(model.get("userCacheEvictionPolicy")),
+                    model.get("staleCacheMaxSize", 0L)
+            );
+            providerConfig.credentialCache = new CredentialCache(
+                    model.get("credentialCacheMaxSize", 0L),
+                    model.get("credentialCacheTtl", 60L)
+            );
+            providerConfig.hashingExecutor = new PasswordHashingExecutor(
+                    model.getName(),
+                    model.get("hashingThreads", 0),
+                    model.get("hashingQueueSize", 100),
+                    model.get("hashingTimeout", 5000L)
+            );
+            providerConfig.countCache = new CountCache(model.get("countCacheTtl", 0L));
+            providerConfig.negativeLookupFilter = new NegativeLookupFilter(
+                    model.get("negativeCacheTtl", 0L),
+                    model.get("bloomFilterRefresh", 0L),
+                    Double.parseDouble(model.get("bloomFilterFpp", "0.01"))
+            );
+            providerConfig.searchIndex = new SearchIndex(
+                    providerConfig.queryConfigurations.getSearchColumns(),
+                    searchIndexRefresh(model, providerConfig.queryConfigurations.getSearchStrategy())
+            );
+            providerConfig.circuitBreaker = new CircuitBreaker(
+                    Double.parseDouble(model.get("circuitFailureRate", "0")),
+                    model.get("circuitSlowCallDuration", 5000L),
+                    model.get("circuitWindowSize", 20),
+                    model.get("circuitOpenDuration", 30L),
+                    model.get("circuitHalfOpenCalls", 3)
+            );
+            providerConfig.bulkheads.put(QueryKind.LOOKUP, new Bulkhead(
+                    "Lookup",
+                    model.get("lookupConcurrency", 0),
+                    model.get("lookupQueueSize", 100),
+                    model.get("lookupMaxWait", 5000L)
+            ));
+            providerConfig.bulkheads.put(QueryKind.LISTING, new Bulkhead(
+                    "Listing",
+                    model.get("listingConcurrency", 0),
+                    model.get("listingQueueSize", 10),
+                    model.get("listingMaxWait", 10000L)
+            ));
+            // Last, once nothing else can fail: the pools may be the live ones of the configuration being replaced.
+            providerConfig.dataSourceProvider.configure(url, model.get("replicaUrl"), model.get("replicaRetryInterval", 30L), model.get("drainTimeout", 30L), rdbms, user, password, model.getName(), poolSettings);
+        } catch (RuntimeException e) {
+            providerConfig.discard();
+            throw e;
+        }
+        providerConfig.userRepository = new UserRepository(providerConfig.dataSourceProvider, providerConfig.queryConfigurations, providerConfig.userCache, providerConfig.credentialCache, providerConfig.hashingExecutor, providerConfig.countCache, providerConfig.negativeLookupFilter, providerConfig.searchIndex, providerConfig.circuitBreaker, providerConfig.bulkheads);
         return providerConfig;
     }
     
+    // The index matches lower case prefixes: with any other strategy it would answer differently from the database.
+    private long searchIndexRefresh(ComponentModel model, SearchStrategy searchStrategy) {
+        long refresh = model.get("searchIndexRefresh", 0L);
+        if (refresh > 0 && searchStrategy != SearchStrategy.PREFIX) {
+            logger.warn("Search index of component {"+model.getName()+"} disabled: it needs the {"+SearchStrategy.PREFIX.getDesc()+"} search strategy, not {"+searchStrategy.getDesc()+"}");
+            return 0;
+        }
+        return refresh;
+    }
+    
     @Override
     public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel model) throws ComponentValidationException {
         try {
-            ProviderConfig old = providerConfigPerInstance.put(model.getId(), configure(model));
-            if (old != null) {
-                old.dataSourceProvider.close();
+            if (model.getId() == null || !new UserStorageProviderModel(model).isEnabled()) {
+                validateOnly(model);
+                return;
             }
+            component(model.getId()).replace(current -> configure(model, current != null ? current.dataSourceProvider : new DataSourceProvider(model.getId())), model.getId());
         } catch (Exception e) {
-            throw new ComponentValidationException(e.getMessage(), e);
+            throw new ComponentValidationException(e.getMessage() != null ? e.getMessage() : e.toString(), e);
+        }
+    }
+    
+    /**
+     * A component being created has no id yet, and a disabled one serves no session: its configuration is built,
+     * database connection included, to be checked and then released right away, without starting its background
+     * jobs. The component is configured for good on first use, once it has an id and is enabled.
+     */
+    private void validateOnly(ComponentModel model) {
+        DataSourceProvider dataSourceProvider = new DataSourceProvider(null);
+        try {
+            configure(model, dataSourceProvider).discard();
+        } finally {
+            dataSourceProvider.close();
+        }
+    }
+    
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        if (!new UserStorageProviderModel(newModel).isEnabled()) {
+            remove(newModel.getId());
         }
     }
     
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        remove(model.getId());
+    }
+    
+    // Stops the background jobs of the component and releases its pools; it is configured again if used afterwards.
+    private void remove(String componentId) {
+        ComponentConfig component = providerConfigPerInstance.remove(componentId);
+        if (component != null) {
+            logger.info("Removing configuration of component: id={"+componentId+"}");
+            component.close(componentId);
+        }
+    }
+    
+    private ProviderConfig providerConfig(ComponentModel model) {
+        ProviderConfig providerConfig;
+        do {
+            // null when the component was removed meanwhile: its new entry is configured instead
+            providerConfig = component(model.getId()).get(() -> configure(model, new DataSourceProvider(model.getId())).start().registerMBeans(model.getId()));
+        } while (providerConfig == null);
+        return providerConfig;
+    }
+    
+    private ComponentConfig component(String componentId) {
+        return providerConfigPerInstance.computeIfAbsent(componentId, id -> new ComponentConfig());
+    }
+    
     @Override
     public String getId() {
         return "cmabreu-db-user-provider";
@@ -104,6 +301,26 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                            .defaultValue("jdbc:jtds:sqlserver://server-name/database_name;instance=instance_name")
                                            .add()
                                            .property()
+                                           .name("replicaUrl")
+                                           .label("Read replica JDBC URL (optional)")
+                                           .helpText("JDBC Connection String of a read replica, reached with the same user and password. When set, user listings, searches and counts run on it while user and password lookups stay on the primary database.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .add()
+                                           .property()
+                                           .name("replicaRetryInterval")
+                                           .label("Read replica retry interval (seconds)")
+                                           .helpText("When the read replica fails to provide a connection, listings use the primary database for this many seconds before the replica is tried again.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("30")
+                                           .add()
+                                           .property()
+                                           .name("drainTimeout")
+                                           .label("Reconfiguration drain timeout (seconds)")
+                                           .helpText("When this configuration is saved, new connection pools take over right away and the previous ones are closed once the connections in use are returned, or after this many seconds.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("30")
+                                           .add()
+                                           .property()
                                            .name("user")
                                            .label("JDBC Connection User")
                                            .helpText("JDBC Connection User")
@@ -125,6 +342,127 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                            .options(RDBMS.getAllDescriptions())
                                            .defaultValue(RDBMS.SQL_SERVER.getDesc())
                                            .add()
+        
+                                           //CONNECTION POOL
+        
+                                           .property()
+                                           .name("maxPoolSize")
+                                           .label("Max pool size")
+                                           .helpText("Maximum number of connections kept to the database, in use or idle.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("10")
+                                           .add()
+                                           .property()
+                                           .name("minIdle")
+                                           .label("Min idle connections")
+                                           .helpText("Number of idle connections the pool tries to keep ready. Equal to the max pool size for a fixed size pool.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("10")
+                                           .add()
+                                           .property()
+                                           .name("connectionTimeout")
+                                           .label("Connection timeout (ms)")
+                                           .helpText("Maximum time, in milliseconds, a lookup waits for a connection from the pool before failing.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("30000")
+                                           .add()
+                                           .property()
+                                           .name("validationTimeout")
+                                           .label("Validation timeout (ms)")
+                                           .helpText("Maximum time, in milliseconds, a connection is checked for liveness before being handed out. Validation uses JDBC4 isValid, except with jTDS which runs the test query.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("5000")
+                                           .add()
+                                           .property()
+                                           .name("idleTimeout")
+                                           .label("Idle timeout (ms)")
+                                           .helpText("Time, in milliseconds, after which connections above the min idle count are closed when unused. Use 0 to never close them.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("600000")
+                                           .add()
+                                           .property()
+                                           .name("maxLifetime")
+                                           .label("Max connection lifetime (ms)")
+                                           .helpText("Time, in milliseconds, after which a connection is retired once returned to the pool. Keep it a few seconds below any database or network connection time limit.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("1800000")
+                                           .add()
+                                           .property()
+                                           .name("keepaliveTime")
+                                           .label("Keepalive interval (ms)")
+                                           .helpText("Interval, in milliseconds, at which idle connections are pinged to keep firewalls and the database from dropping them. Must be below the max lifetime. Use 0 to disable.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("leakDetectionThreshold")
+                                           .label("Leak detection threshold (ms)")
+                                           .helpText("Time, in milliseconds, a connection can stay borrowed before a possible leak is logged with the borrowing stack trace. Use 0 to disable.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("driverProperties")
+                                           .label("Driver properties (optional)")
+                                           .helpText("Extra JDBC driver properties as name=value pairs separated by semicolons (e.g. ssl=true;loginTimeout=5). They override the statement caching defaults set for the selected RDBMS (MySQL cachePrepStmts/useServerPrepStmts, PostgreSQL prepareThreshold, Oracle implicit statement cache, jTDS maxStatements).")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .add()
+                                           .property()
+                                           .name("lookupConcurrency")
+                                           .label("Login lookups max connections")
+                                           .helpText("Maximum number of connections user and password lookups (login path) can hold at once. Use 0 for no limit.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("lookupQueueSize")
+                                           .label("Login lookups queue size")
+                                           .helpText("Number of login lookups that may wait for a connection slot once the limit is reached; the others fail right away.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("100")
+                                           .add()
+                                           .property()
+                                           .name("lookupMaxWait")
+                                           .label("Login lookups max wait (ms)")
+                                           .helpText("Maximum time, in milliseconds, a login lookup waits for a connection slot.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("5000")
+                                           .add()
+                                           .property()
+                                           .name("listingConcurrency")
+                                           .label("Listings max connections")
+                                           .helpText("Maximum number of connections user listings, searches and counts (admin console) can hold at once, open search cursors included. Keep it below the max pool size so logins always find a connection. Use 0 for no limit.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("listingQueueSize")
+                                           .label("Listings queue size")
+                                           .helpText("Number of listings that may wait for a connection slot once the limit is reached; the others fail right away.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("10")
+                                           .add()
+                                           .property()
+                                           .name("listingMaxWait")
+                                           .label("Listings max wait (ms)")
+                                           .helpText("Maximum time, in milliseconds, a listing waits for a connection slot.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("10000")
+                                           .add()
+                                           .property()
+                                           .name("warmUp")
+                                           .label("Warm up on start")
+                                           .helpText("When Keycloak starts, open this component's connection pools in the background, so the first logins do not wait for them; the pools then establish their min idle connections by themselves.")
+                                           .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                           .defaultValue("true")
+                                           .add()
+                                           .property()
+                                           .name("warmUpPrepareQueries")
+                                           .label("Prepare queries on warm up")
+                                           .helpText("During the warm up, also have the database parse every configured query, on one connection of each pool, so their plans are ready before the first logins.")
+                                           .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                           .defaultValue("false")
+                                           .add()
                                            .property()
                                            .name("allowKeycloakDelete")
                                            .label("Allow Keycloak's User Delete")
@@ -179,6 +517,14 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                                          "            \"fullName\" from users where \"id\" = ? ")
                                            .add()
         
+                                           .property()
+                                           .name("idType")
+                                           .label("User id column type")
+                                           .helpText("SQL type of the \"id\" column the find user by id query filters on. The id is bound with exactly this type so the query can use the primary key index. On SQL Server, VARCHAR ids also need the sendStringParametersAsUnicode=false driver property.")
+                                           .type(ProviderConfigProperty.LIST_TYPE)
+                                           .options(IdType.getAllDescriptions())
+                                           .defaultValue(IdType.INTEGER.getDesc())
+                                           .add()
                                            .property()
                                            .name("findByUsername")
                                            .label("Find user by username SQL query")
@@ -193,6 +539,13 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                                          "            \"fullName\" from users where \"username\" = ? ")
                                            .add()
         
+                                           .property()
+                                           .name("findByEmail")
+                                           .label("Find user by email SQL query (optional)")
+                                           .helpText("Optional query returning the same columns as the find by username query for the user with the given email, ideally filtering on an indexed email column. When empty, lookups by email run the find by username query with the email as parameter. " + String.format(PARAMETER_HELP, "user email") + PARAMETER_PLACEHOLDER_HELP)
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .add()
+        
                                            .property()
                                            .name("findBySearchTerm")
                                            .label("Find user by search term SQL query")
@@ -206,6 +559,35 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                                          "            \"cpf\"," +
                                                          "            \"fullName\" from users where upper(\"username\") like (?)  or upper(\"email\") like (?) or upper(\"fullName\") like (?)")
                                            .add()
+                                           .property()
+                                           .name("searchStrategy")
+                                           .label("Search strategy")
+                                           .helpText("How the admin console search term is matched. The find user by search term query gets the term as typed. Every other strategy generates the search query from the list all users query, filtered on the search columns, and needs a matching index on them: exact match a plain index, prefix match an index on lower(column) (with text_pattern_ops on PostgreSQL), trigram a pg_trgm GIN index, PostgreSQL full text an index on to_tsvector('simple', column), MySQL a FULLTEXT index on exactly the search columns, Oracle a CONTEXT index and SQL Server a full-text index. Full text strategies match every word of the term as a prefix.")
+                                           .type(ProviderConfigProperty.LIST_TYPE)
+                                           .options(SearchStrategy.getAllDescriptions())
+                                           .defaultValue(SearchStrategy.CONFIGURED.getDesc())
+                                           .add()
+                                           .property()
+                                           .name("searchColumns")
+                                           .label("Search columns")
+                                           .helpText("Column labels returned by the list all users query that generated search strategies match the term on, separated by semicolons. Not used by the find user by search term query.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("username;email;fullName")
+                                           .add()
+                                           .property()
+                                           .name("searchMinLength")
+                                           .label("Search term min length")
+                                           .helpText("Search terms shorter than this, once trimmed and normalised, return no users instead of running a search that matches most of the table. Use 0 to search any term.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("attributeColumns")
+                                           .label("Searchable attributes")
+                                           .helpText("Attributes that admin searches by attribute (e.g. by email, first name or a custom attribute) filter on in the database, as \"attribute=column\" pairs separated by semicolons, where column is the label returned by the list all users query; a lone attribute name filters on the column of the same label. The filter is added as a parameterised WHERE clause around the list all users or search term query, so index the mapped columns. Searches on any other attribute return no users from this provider.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("username;email;firstName;lastName")
+                                           .add()
         
                                            .property()
                                            .name("findPasswordHash")
@@ -215,6 +597,12 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                            .defaultValue("select hash_pwd from users where \"username\" = ? ")
                                            .add()
                                            .property()
+                                           .name("findUserForLogin")
+                                           .label("Find user and password hash by username SQL query (optional)")
+                                           .helpText("Optional login query returning the same columns as the find by username query plus the password hash aliased as \"" + UserRepository.LOGIN_HASH_COLUMN + "\". When set, a login loads the user and its hash in a single round trip instead of running the username and password hash queries separately. The hash column is never exposed as a user attribute. " + String.format(PARAMETER_HELP, "user username") + PARAMETER_PLACEHOLDER_HELP)
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .add()
+                                           .property()
                                            .name("hashFunction")
                                            .label("Password hash function")
                                            .helpText("Hash type used to match passwrod (md* e sha* uses hex hash digest)")
@@ -222,12 +610,305 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                            .options("Blowfish (bcrypt)", "MD2", "MD5", "SHA-1", "SHA-256", "SHA3-224", "SHA3-256", "SHA3-384", "SHA3-512", "SHA-384", "SHA-512/224", "SHA-512/256", "SHA-512", "PBKDF2-SHA256")
                                            .defaultValue("SHA-1")
                                            .add()
+        
+                                           //STREAMING
+        
+                                           .property()
+                                           .name("streamFetchSize")
+                                           .label("Unpaged search fetch size")
+                                           .helpText("Number of rows fetched per round trip when an unpaged search streams its results through a database cursor instead of loading every user in memory. On MySQL, add useCursorFetch=true to the JDBC URL for the fetch size to be honoured.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("100")
+                                           .add()
+                                           .property()
+                                           .name("streamMaxResults")
+                                           .label("Unpaged search max results")
+                                           .helpText("Hard limit, pushed into the SQL, on the number of users an unpaged search can return. Use 0 for no limit.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("keysetColumn")
+                                           .label("Keyset pagination column (optional)")
+                                           .helpText("Column label, exactly as returned by the list and search queries (e.g. \"id\"), holding a unique and indexed key. When set, user listings are ordered by it and the next page continues after the last key served instead of skipping rows with an offset, so deep pages cost the same as the first one. Leave empty to use offset pagination.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .add()
+        
+                                           //CACHE
+        
+                                           .property()
+                                           .name("userCacheMaxSize")
+                                           .label("User cache max size")
+                                           .helpText("Maximum number of user rows kept in memory, keyed by id and by username, to avoid repeated lookups on the database during a login flow. Use 0 to disable the cache.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("userCacheTtl")
+                                           .label("User cache TTL (seconds)")
+                                           .helpText("Time, in seconds, a cached user row is considered fresh. Changes made on the database may take this long to be seen by Keycloak.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("30")
+                                           .add()
+                                           .property()
+                                           .name("userCacheEvictionPolicy")
+                                           .label("User cache eviction policy")
+                                           .helpText("Whether the TTL of a cached user row counts from when it was loaded or from its last access. Least recently used rows are evicted when the cache is full.")
+                                           .type(ProviderConfigProperty.LIST_TYPE)
+                                           .options(CacheEvictionPolicy.getAllDescriptions())
+                                           .defaultValue(CacheEvictionPolicy.EXPIRE_AFTER_WRITE.getDesc())
+                                           .add()
+                                           .property()
+                                           .name("credentialCacheMaxSize")
+                                           .label("Verified credential cache max size")
+                                           .helpText("Maximum number of successful password verifications remembered to skip repeated bcrypt/PBKDF2 work on token refreshes and re-authentications. Only a keyed HMAC of username, stored hash and password is kept, and a change of the stored hash invalidates the entry. Use 0 to disable the cache.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("credentialCacheTtl")
+                                           .label("Verified credential cache TTL (seconds)")
+                                           .helpText("Time, in seconds, a successful password verification is remembered.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("60")
+                                           .add()
+                                           .property()
+                                           .name("countCacheTtl")
+                                           .label("User count cache TTL (seconds)")
+                                           .helpText("Time, in seconds, a user count (total or per search term) is reused. Older counts are still served while they are recounted in the background, so the admin console does not wait on count scans. Use 0 to count on every request.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("approximateCountTable")
+                                           .label("Approximate user count table (optional)")
+                                           .helpText("Users table name (optionally schema qualified). When set, the total user count is read from the database planner statistics for that table (pg_class.reltuples, information_schema.tables.table_rows, Oracle num_rows, SQL Server sys.partitions, DB2 syscat.tables.card) instead of running the count query, which falls back when no statistics exist. Searches are always counted exactly.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .add()
+                                           .property()
+                                           .name("negativeCacheTtl")
+                                           .label("Unknown login cache TTL (seconds)")
+                                           .helpText("Time, in seconds, a username or email the database reported as unknown is rejected without querying it again. Keep it short: a user created meanwhile cannot log in until it expires. Use 0 to disable.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("bloomFilterRefresh")
+                                           .label("Known logins filter refresh (seconds)")
+                                           .helpText("Interval, in seconds, between rebuilds of a Bloom filter of every username and email, read by streaming the list all query (which must return \"username\" and optionally \"email\" columns). Logins absent from the filter are rejected without querying the database, so users created since the last rebuild cannot log in until the next one. Use 0 to disable.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("bloomFilterFpp")
+                                           .label("Known logins filter false positive rate")
+                                           .helpText("Target share of unknown logins the filter lets through to the database, between 0 and 1. Lower rates use more memory.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0.01")
+                                           .add()
+                                           .property()
+                                           .name("searchIndexRefresh")
+                                           .label("Search index refresh (seconds)")
+                                           .helpText("When set, every user row read by the list all users query is kept in an in-memory prefix index on the search columns, rebuilt in the background with this delay by streaming that query. Admin searches and their counts are then answered from memory as prefix matches on any search column, without querying the database; unpaged searches are capped by the stream max results. Only used with the prefix match search strategy, so the database and the index find the same users. While the index is not built yet, or is older than twice this delay, searches go to the database. Use 0 to disable.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+        
+                                           //CIRCUIT BREAKER
+        
+                                           .property()
+                                           .name("circuitFailureRate")
+                                           .label("Circuit breaker failure rate (%)")
+                                           .helpText("Percentage of failed or slow database calls, over the last calls window, that opens the circuit: queries are then refused right away instead of waiting on the database. Use 0 to disable.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("circuitSlowCallDuration")
+                                           .label("Circuit breaker slow call (ms)")
+                                           .helpText("Duration, in milliseconds, above which a successful database call counts as failed. Use 0 to only count errors.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("5000")
+                                           .add()
+                                           .property()
+                                           .name("circuitWindowSize")
+                                           .label("Circuit breaker window size")
+                                           .helpText("Number of most recent database calls the failure rate is computed on.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("20")
+                                           .add()
+                                           .property()
+                                           .name("circuitOpenDuration")
+                                           .label("Circuit breaker open duration (seconds)")
+                                           .helpText("Time, in seconds, queries are refused once the circuit opens, before probe calls are let through.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("30")
+                                           .add()
+                                           .property()
+                                           .name("circuitHalfOpenCalls")
+                                           .label("Circuit breaker probe calls")
+                                           .helpText("Number of probe calls that must succeed to close the circuit again; any failure reopens it.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("3")
+                                           .add()
+                                           .property()
+                                           .name("staleCacheMaxSize")
+                                           .label("Stale user cache max size")
+                                           .helpText("Number of users whose last known row is kept, without expiry, to answer user lookups while the database fails or the circuit is open. Passwords are still checked against the database. Use 0 to disable.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+        
+                                           //PASSWORD HASHING
+        
+                                           .property()
+                                           .name("hashingThreads")
+                                           .label("Password hashing threads")
+                                           .helpText("Number of dedicated threads verifying password hashes, so a burst of logins cannot starve Keycloak's request threads. Use 0 to verify on the request thread.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("0")
+                                           .add()
+                                           .property()
+                                           .name("hashingQueueSize")
+                                           .label("Password hashing queue size")
+                                           .helpText("Maximum number of verifications waiting for a hashing thread. Logins arriving when the queue is full fail right away as a server error, not as invalid credentials.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("100")
+                                           .add()
+                                           .property()
+                                           .name("hashingTimeout")
+                                           .label("Password hashing timeout (ms)")
+                                           .helpText("Deadline, in milliseconds and including the time spent in the queue, for a single password verification. A verification that does not finish in time fails the login as a server error, not as invalid credentials; it keeps its hashing thread until it completes. Use 0 to wait indefinitely.")
+                                           .type(ProviderConfigProperty.STRING_TYPE)
+                                           .defaultValue("5000")
+                                           .add()
                                            .build();
     }
     
+    /**
+     * Holds the configuration of one component. It is built on first use and replaced on validation under this
+     * holder's own lock, so concurrent sessions of a component share one configuration (and one set of pools)
+     * while other components are never blocked.
+     */
+    private static class ComponentConfig {
+        private volatile ProviderConfig providerConfig;
+        // Set once the component is removed, so a caller still holding this entry cannot configure it again.
+        private          boolean        removed;
+        
+        /**
+         * @return the configuration, or null when the component was removed
+         */
+        private ProviderConfig get(Supplier<ProviderConfig> configure) {
+            ProviderConfig current = providerConfig;
+            if (current != null) {
+                return current;
+            }
+            synchronized (this) {
+                if (providerConfig == null && !removed) {
+                    providerConfig = configure.get();
+                }
+                return providerConfig;
+            }
+        }
+        
+        private synchronized void replace(Function<ProviderConfig, ProviderConfig> configure, String componentId) {
+            if (removed) {
+                return;
+            }
+            ProviderConfig old = providerConfig;
+            providerConfig = configure.apply(old).start();
+            if (old != null) {
+                // sessions still using the old configuration keep working: the pools are shared and drained, not closed
+                old.retire(componentId);
+            }
+            providerConfig.registerMBeans(componentId);
+        }
+        
+        private synchronized void close(String componentId) {
+            removed = true;
+            if (providerConfig != null) {
+                providerConfig.close(componentId);
+                providerConfig = null;
+            }
+        }
+    }
+    
     private static class ProviderConfig {
-        private DataSourceProvider  dataSourceProvider = new DataSourceProvider();
+        private final DataSourceProvider dataSourceProvider;
         private QueryConfigurations queryConfigurations;
+        private UserCache           userCache;
+        private CredentialCache     credentialCache;
+        private PasswordHashingExecutor hashingExecutor;
+        private CountCache          countCache;
+        private NegativeLookupFilter negativeLookupFilter;
+        private SearchIndex         searchIndex;
+        private CircuitBreaker      circuitBreaker;
+        private Map<QueryKind, Bulkhead> bulkheads = new EnumMap<>(QueryKind.class);
+        private UserRepository      userRepository;
+        
+        private ProviderConfig(DataSourceProvider dataSourceProvider) {
+            this.dataSourceProvider = dataSourceProvider;
+        }
+        
+        /**
+         * Starts the background jobs of a configuration put in service; one only built to be validated never runs them.
+         */
+        private ProviderConfig start() {
+            negativeLookupFilter.start(userRepository::streamAllUsers, () -> userRepository.getUsersCount(null));
+            searchIndex.start(userRepository::streamAllUsers);
+            return this;
+        }
+        
+        private ProviderConfig registerMBeans(String componentId) {
+            MBeanUtil.register(componentId, "DataSourceProvider", dataSourceProvider);
+            MBeanUtil.register(componentId, "UserCache", userCache);
+            MBeanUtil.register(componentId, "CredentialCache", credentialCache);
+            MBeanUtil.register(componentId, "PasswordHashingExecutor", hashingExecutor);
+            MBeanUtil.register(componentId, "CountCache", countCache);
+            MBeanUtil.register(componentId, "NegativeLookupFilter", negativeLookupFilter);
+            MBeanUtil.register(componentId, "SearchIndex", searchIndex);
+            MBeanUtil.register(componentId, "CircuitBreaker", circuitBreaker);
+            MBeanUtil.register(componentId, "LookupBulkhead", bulkheads.get(QueryKind.LOOKUP));
+            MBeanUtil.register(componentId, "ListingBulkhead", bulkheads.get(QueryKind.LISTING));
+            return this;
+        }
+        
+        /**
+         * Stops what a configuration that failed to build, or was only built to be validated, had started; nothing
+         * is registered for it.
+         */
+        private void discard() {
+            if (hashingExecutor != null) {
+                hashingExecutor.close();
+            }
+            if (countCache != null) {
+                countCache.close();
+            }
+            if (negativeLookupFilter != null) {
+                negativeLookupFilter.close();
+            }
+            if (searchIndex != null) {
+                searchIndex.close();
+            }
+        }
+        
+        /**
+         * Releases everything but the data source provider, which the configuration replacing this one took over.
+         */
+        private void retire(String componentId) {
+            MBeanUtil.unregisterAll(componentId);
+            userCache.invalidateAll();
+            credentialCache.invalidateAll();
+            hashingExecutor.close();
+            countCache.close();
+            negativeLookupFilter.close();
+            searchIndex.close();
+        }
+        
+        private void close(String componentId) {
+            retire(componentId);
+            dataSourceProvider.close();
+        }
     }
     
     
@@ -0,0 +1,15 @@
+package br.com.cmabreu.dbuserprovider;
+
+/**
+ * The external database or the password hashing workers could not serve the request (overload, open circuit,
+ * deadline exceeded). Thrown instead of answering "invalid credentials", so the login fails as a server error and
+ * Keycloak's brute force protection does not count it against the user.
+ */
+public class DBUserStorageUnavailableException extends DBUserStorageException {
+
+	private static final long serialVersionUID = 1L;
+
+	public DBUserStorageUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,43 @@
+package br.com.cmabreu.dbuserprovider.cache;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.google.common.cache.CacheBuilder;
+
+public enum CacheEvictionPolicy {
+    EXPIRE_AFTER_WRITE("Expire after write"),
+    EXPIRE_AFTER_ACCESS("Expire after access");
+
+    private final String desc;
+
+    CacheEvictionPolicy(String desc) {
+        this.desc = desc;
+    }
+
+    public static CacheEvictionPolicy getByDescription(String desc) {
+        for (CacheEvictionPolicy value : values()) {
+            if (value.desc.equals(desc)) {
+                return value;
+            }
+        }
+        return EXPIRE_AFTER_WRITE;
+    }
+
+    public static List<String> getAllDescriptions() {
+        return Arrays.stream(values()).map(CacheEvictionPolicy::getDesc).collect(Collectors.toList());
+    }
+
+    public String getDesc() {
+        return desc;
+    }
+
+    <K, V> CacheBuilder<K, V> apply(CacheBuilder<K, V> builder, long ttlSeconds) {
+        if (this == EXPIRE_AFTER_ACCESS) {
+            return builder.expireAfterAccess(ttlSeconds, TimeUnit.SECONDS);
+        }
+        return builder.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS);
+    }
+}
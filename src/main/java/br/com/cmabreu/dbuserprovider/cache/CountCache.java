@@ -0,0 +1,154 @@
+package br.com.cmabreu.dbuserprovider.cache;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Caches user counts by search term (the empty term being the total). Once a count is older than the TTL it is
+ * still served while a single background task recounts it, so the admin console never waits on a count scan
+ * after the first one. Counts left untouched for ten TTLs are dropped. A TTL of zero (or less) disables the cache.
+ * A count that could not be obtained is never cached: the previous one, if any, keeps being served.
+ */
+public class CountCache implements CountCacheMBean, Closeable {
+
+    private static final int MAX_TERMS = 1_000;
+
+    private final Cache<String, Entry> cache;
+    private final long                 ttlMillis;
+    private final ExecutorService      refresher;
+    private final LongAdder            hitCount            = new LongAdder();
+    private final LongAdder            missCount           = new LongAdder();
+    private final LongAdder            refreshCount        = new LongAdder();
+    private final LongAdder            refreshFailureCount = new LongAdder();
+    private Logger logger = LoggerFactory.getLogger( CountCache.class );
+
+    public CountCache(long ttlSeconds) {
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        if (ttlSeconds > 0) {
+            this.cache = CacheBuilder.newBuilder()
+                                     .maximumSize(MAX_TERMS)
+                                     .expireAfterWrite(ttlSeconds * 10, TimeUnit.SECONDS)
+                                     .build();
+            this.refresher = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "cmabreu-count-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.cache = null;
+            this.refresher = null;
+        }
+    }
+
+    /**
+     * @param counter counts the users matching the search term, returning null when the count failed
+     * @return the count, or 0 when there is none cached and counting failed
+     */
+    public int get(String search, Function<String, Integer> counter) {
+        if (cache == null) {
+            Integer count = counter.apply(search);
+            return count == null ? 0 : count;
+        }
+        String key   = search == null ? "" : search;
+        Entry  entry = cache.getIfPresent(key);
+        if (entry == null) {
+            missCount.increment();
+            Integer count = counter.apply(search);
+            if (count == null) {
+                return 0;
+            }
+            cache.put(key, new Entry(count));
+            return count;
+        }
+        hitCount.increment();
+        if (System.currentTimeMillis() - entry.loadedAt > ttlMillis && entry.refreshing.compareAndSet(false, true)) {
+            refresh(key, search, entry, counter);
+        }
+        return entry.count;
+    }
+
+    private void refresh(String key, String search, Entry entry, Function<String, Integer> counter) {
+        try {
+            refresher.execute(() -> {
+                try {
+                    Integer count = counter.apply(search);
+                    if (count == null) {
+                        refreshFailureCount.increment();
+                        entry.refreshing.set(false);
+                        return;
+                    }
+                    cache.put(key, new Entry(count));
+                    refreshCount.increment();
+                } catch (Exception e) {
+                    refreshFailureCount.increment();
+                    entry.refreshing.set(false);
+                    logger.warn("Could not refresh user count: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return refreshCount.sum();
+    }
+
+    @Override
+    public long getRefreshFailureCount() {
+        return refreshFailureCount.sum();
+    }
+
+    @Override
+    public void invalidateAll() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+        invalidateAll();
+    }
+
+    private static final class Entry {
+        private final int           count;
+        private final long          loadedAt   = System.currentTimeMillis();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(int count) {
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package br.com.cmabreu.dbuserprovider.cache;
+
+public interface CountCacheMBean {
+
+    long getSize();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getRefreshCount();
+
+    long getRefreshFailureCount();
+
+    void invalidateAll();
+}
@@ -0,0 +1,108 @@
+package br.com.cmabreu.dbuserprovider.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import br.com.cmabreu.dbuserprovider.DBUserStorageException;
+
+/**
+ * Short-lived cache of successful password verifications, so token refreshes and SSO re-authentications
+ * do not pay a full bcrypt/PBKDF2 round each time.
+ * <p>
+ * Entries are keyed by an HMAC-SHA256 of (username, stored hash, password) computed with a random key that
+ * never leaves this instance, so neither the password nor anything reusable against the database is kept.
+ * Because the stored hash is part of the key, a password change on the database simply stops matching.
+ * A max size of zero (or less) disables the cache.
+ */
+public class CredentialCache implements CredentialCacheMBean {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private final Cache<ByteBuffer, Boolean> cache;
+    private final SecretKeySpec              key;
+
+    public CredentialCache(long maxSize, long ttlSeconds) {
+        if (maxSize > 0 && ttlSeconds > 0) {
+            this.cache = CacheBuilder.newBuilder()
+                                     .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                     .maximumSize(maxSize)
+                                     .recordStats()
+                                     .build();
+            byte[] secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            this.key = new SecretKeySpec(secret, HMAC_ALGORITHM);
+        } else {
+            this.cache = null;
+            this.key = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    public boolean isVerified(String username, String storedHash, String password) {
+        if (cache == null || storedHash == null || storedHash.isEmpty()) {
+            return false;
+        }
+        return cache.getIfPresent(mac(username, storedHash, password)) != null;
+    }
+
+    public void putVerified(String username, String storedHash, String password) {
+        if (cache == null || storedHash == null || storedHash.isEmpty()) {
+            return;
+        }
+        cache.put(mac(username, storedHash, password), Boolean.TRUE);
+    }
+
+    private ByteBuffer mac(String... parts) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            for (String part : parts) {
+                byte[] bytes = String.valueOf(part).getBytes(StandardCharsets.UTF_8);
+                mac.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+                mac.update(bytes);
+            }
+            return ByteBuffer.wrap(mac.doFinal());
+        } catch (GeneralSecurityException e) {
+            throw new DBUserStorageException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache == null ? 0 : cache.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache == null ? 0 : cache.stats().missCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache == null ? 0 : cache.stats().evictionCount();
+    }
+
+    @Override
+    public void invalidateAll() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+}
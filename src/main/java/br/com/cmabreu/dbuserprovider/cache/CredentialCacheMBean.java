@@ -0,0 +1,14 @@
+package br.com.cmabreu.dbuserprovider.cache;
+
+public interface CredentialCacheMBean {
+
+    long getSize();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getEvictionCount();
+
+    void invalidateAll();
+}
@@ -0,0 +1,15 @@
+package br.com.cmabreu.dbuserprovider.cache;
+
+/**
+ * What a login is looked up by, which decides the query answering it and so the known misses that apply to it.
+ */
+public enum LoginKind {
+    /**
+     * Through the find by username (or login) query; also used for emails when no find by email query is set.
+     */
+    USERNAME,
+    /**
+     * Through the find by email query.
+     */
+    EMAIL
+}
@@ -0,0 +1,276 @@
+package br.com.cmabreu.dbuserprovider.cache;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import br.com.cmabreu.dbuserprovider.model.UserRow;
+
+/**
+ * Rejects logins (usernames or emails) that are known not to exist in the external database, so brute-force
+ * traffic against unknown accounts does not reach it. Two independent mechanisms, each optional:
+ * <ul>
+ * <li>a miss cache remembering, for a short TTL, logins the database just reported as unknown;</li>
+ * <li>a Bloom filter of every known login, rebuilt periodically by streaming the list all query. A login absent
+ * from the filter is a definite miss; a login present in it may still be unknown (false positive).</li>
+ * </ul>
+ * Logins are compared in lower case, and only with logins of the same {@link LoginKind}: a username lookup that
+ * missed says nothing about the same string looked up by email, and the reverse. Usernames are checked against a
+ * filter of the usernames and emails, since the find by username query often matches either and answers email
+ * lookups when no find by email query is set; emails against a filter of the emails only. When the list all query
+ * returns no email, email lookups and usernames that look like an email (contain '@') are not checked against any
+ * filter. Users added to the database are only seen after the miss TTL, respectively the next rebuild.
+ */
+public class NegativeLookupFilter implements NegativeLookupFilterMBean, Closeable {
+
+    private static final int MAX_MISSES = 100_000;
+
+    private final Cache<String, Boolean>   misses;
+    private final long                     refreshSeconds;
+    private final double                   falsePositiveRate;
+    private final ScheduledExecutorService rebuilder;
+    private       Supplier<Stream<UserRow>> knownUsers;
+    private       IntSupplier              expectedUsers;
+    private volatile Filters               filters;
+    private final AtomicLong               knownLoginCount    = new AtomicLong();
+    private final AtomicLong               lastRebuildTime    = new AtomicLong();
+    private final LongAdder                missCacheHitCount  = new LongAdder();
+    private final LongAdder                bloomRejectedCount = new LongAdder();
+    private final LongAdder                falsePositiveCount = new LongAdder();
+    private Logger logger = LoggerFactory.getLogger( NegativeLookupFilter.class );
+
+    public NegativeLookupFilter(long missTtlSeconds, long refreshSeconds, double falsePositiveRate) {
+        this.misses = missTtlSeconds > 0 ? CacheBuilder.newBuilder()
+                                                       .maximumSize(MAX_MISSES)
+                                                       .expireAfterWrite(missTtlSeconds, TimeUnit.SECONDS)
+                                                       .build()
+                                         : null;
+        this.refreshSeconds = refreshSeconds;
+        this.falsePositiveRate = falsePositiveRate > 0 && falsePositiveRate < 1 ? falsePositiveRate : 0.01;
+        this.rebuilder = refreshSeconds > 0 ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cmabreu-bloom-rebuild");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * Schedules the Bloom filter rebuilds, the first one right away. Until it completes only the miss cache applies.
+     *
+     * @param knownUsers    streams every user, with its username and, if returned, email; closed after each rebuild
+     * @param expectedUsers (approximate) number of users, used to size the filter
+     */
+    public void start(Supplier<Stream<UserRow>> knownUsers, IntSupplier expectedUsers) {
+        if (rebuilder == null) {
+            return;
+        }
+        this.knownUsers = knownUsers;
+        this.expectedUsers = expectedUsers;
+        rebuilder.scheduleWithFixedDelay(this::rebuildFilter, 0, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return true when the login certainly does not exist and the database lookup of that kind can be skipped
+     */
+    public boolean isDefinitelyUnknown(LoginKind kind, String login) {
+        if (login == null) {
+            return false;
+        }
+        String key = normalize(login);
+        if (misses != null && misses.getIfPresent(missKey(kind, key)) != null) {
+            missCacheHitCount.increment();
+            return true;
+        }
+        BloomFilter<CharSequence> filter = filterFor(kind, key);
+        if (filter != null && !filter.mightContain(key)) {
+            bloomRejectedCount.increment();
+            return true;
+        }
+        return false;
+    }
+
+    // The filter knowing every login the lookup of that kind can match, null when there is none.
+    private BloomFilter<CharSequence> filterFor(LoginKind kind, String key) {
+        Filters current = filters;
+        if (current == null) {
+            return null;
+        }
+        if (kind == LoginKind.EMAIL) {
+            return current.emails;
+        }
+        return current.emails != null || key.indexOf('@') < 0 ? current.logins : null;
+    }
+
+    private static String missKey(LoginKind kind, String key) {
+        return kind.name() + ':' + key;
+    }
+
+    /**
+     * Records the database answer for a login that went through {@link #isDefinitelyUnknown(LoginKind, String)}.
+     */
+    public void recordLookup(LoginKind kind, String login, boolean found) {
+        if (login == null) {
+            return;
+        }
+        String key = normalize(login);
+        if (found) {
+            if (misses != null) {
+                misses.invalidate(missKey(kind, key));
+            }
+            return;
+        }
+        if (misses != null) {
+            misses.put(missKey(kind, key), Boolean.TRUE);
+        }
+        if (filterFor(kind, key) != null) {
+            falsePositiveCount.increment();
+        }
+    }
+
+    private void rebuildFilter() {
+        long started = System.currentTimeMillis();
+        int  expected = Math.max(expectedUsers.getAsInt() * 2, 1_024);
+        BloomFilter<CharSequence> logins = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expected, falsePositiveRate);
+        BloomFilter<CharSequence> emails = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expected / 2, falsePositiveRate);
+        long    inserted      = 0;
+        boolean emailsIndexed = false;
+        try (Stream<UserRow> users = knownUsers.get()) {
+            for (UserRow user : (Iterable<UserRow>) users::iterator) {
+                String username = user.get("username");
+                String email    = user.get("email");
+                if (username != null) {
+                    logins.put(normalize(username));
+                    inserted++;
+                }
+                if (email != null) {
+                    logins.put(normalize(email));
+                    emails.put(normalize(email));
+                    inserted++;
+                    emailsIndexed = true;
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Could not rebuild the known logins filter, keeping the previous one: " + e.getMessage());
+            return;
+        }
+        if (inserted == 0) {
+            // an empty filter would reject everybody: most likely the query failed or was capped, not an empty table
+            logger.warn("No login read while rebuilding the known logins filter, keeping the previous one");
+            return;
+        }
+        if (!emailsIndexed) {
+            logger.warn("The list all query returned no email: the known logins filter does not check email lookups");
+        }
+        filters = new Filters(logins, emailsIndexed ? emails : null);
+        knownLoginCount.set(inserted);
+        lastRebuildTime.set(System.currentTimeMillis());
+        logger.info("Known logins filter rebuilt: logins={"+inserted+"} expectedFpp={"+logins.expectedFpp()+"} millis={"+(lastRebuildTime.get() - started)+"}");
+    }
+
+    private static String normalize(String login) {
+        return login.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Filters {
+        // Usernames and emails, checked for username lookups.
+        private final BloomFilter<CharSequence> logins;
+        // Emails only, checked for email lookups; null when the list all query returned none.
+        private final BloomFilter<CharSequence> emails;
+
+        private Filters(BloomFilter<CharSequence> logins, BloomFilter<CharSequence> emails) {
+            this.logins = logins;
+            this.emails = emails;
+        }
+    }
+
+    @Override
+    public long getMissCacheSize() {
+        return misses == null ? 0 : misses.size();
+    }
+
+    @Override
+    public long getMissCacheHitCount() {
+        return missCacheHitCount.sum();
+    }
+
+    @Override
+    public long getKnownLoginCount() {
+        return knownLoginCount.get();
+    }
+
+    @Override
+    public long getLastRebuildTime() {
+        return lastRebuildTime.get();
+    }
+
+    @Override
+    public long getBloomRejectedCount() {
+        return bloomRejectedCount.sum();
+    }
+
+    @Override
+    public long getFalsePositiveCount() {
+        return falsePositiveCount.sum();
+    }
+
+    @Override
+    public double getExpectedFalsePositiveRate() {
+        Filters current = filters;
+        return current == null ? 0 : current.logins.expectedFpp();
+    }
+
+    /**
+     * Share of unknown logins checked against the filter that it failed to reject.
+     */
+    @Override
+    public double getObservedFalsePositiveRate() {
+        long falsePositives = falsePositiveCount.sum();
+        long unknown        = falsePositives + bloomRejectedCount.sum();
+        return unknown == 0 ? 0 : (double) falsePositives / unknown;
+    }
+
+    @Override
+    public void rebuild() {
+        if (rebuilder == null || knownUsers == null) {
+            return;
+        }
+        try {
+            rebuilder.execute(this::rebuildFilter);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Known logins filter is closed");
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        if (misses != null) {
+            misses.invalidateAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (rebuilder != null) {
+            rebuilder.shutdownNow();
+        }
+        filters = null;
+        invalidateAll();
+    }
+}
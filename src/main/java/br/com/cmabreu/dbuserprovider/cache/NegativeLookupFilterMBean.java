@@ -0,0 +1,24 @@
+package br.com.cmabreu.dbuserprovider.cache;
+
+public interface NegativeLookupFilterMBean {
+
+    long getMissCacheSize();
+
+    long getMissCacheHitCount();
+
+    long getKnownLoginCount();
+
+    long getLastRebuildTime();
+
+    long getBloomRejectedCount();
+
+    long getFalsePositiveCount();
+
+    double getExpectedFalsePositiveRate();
+
+    double getObservedFalsePositiveRate();
+
+    void rebuild();
+
+    void invalidateAll();
+}
@@ -0,0 +1,323 @@
+package br.com.cmabreu.dbuserprovider.cache;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import br.com.cmabreu.dbuserprovider.model.UserRow;
+import br.com.cmabreu.dbuserprovider.persistence.SearchStrategy;
+
+/**
+ * In-memory prefix index answering admin searches, such as the console typeahead, without querying the database.
+ * It matches as the prefix match search strategy does: the term, {@link SearchStrategy#normalize(String) normalised}
+ * by that strategy, is a prefix of the lower case value of a search column.
+ * The lower case values of the search columns (by default username, email and full name) are held in one sorted
+ * array pointing into the array of user rows, so the users matching a prefix are a binary search and a scan away,
+ * without a query for the users themselves.
+ * <p>
+ * The index is rebuilt periodically by streaming the list all query and swapped in once complete. It only answers
+ * while it is fresh: until the first build completes, or when rebuilds keep failing for two refresh intervals, the
+ * searches go to the database. Users added or changed on the database are only seen after the next rebuild.
+ */
+public class SearchIndex implements SearchIndexMBean, Closeable {
+
+    // Rough sizes, in bytes, of a String (object and array headers), of a user row (object and values array headers)
+    // and of a reference.
+    private static final long STRING_OVERHEAD = 40;
+    private static final long ROW_OVERHEAD    = 40;
+    private static final long REFERENCE       = 8;
+
+    private final List<String>             columns;
+    private final long                     refreshSeconds;
+    private final ScheduledExecutorService rebuilder;
+    private       Supplier<Stream<UserRow>> users;
+    private volatile Snapshot              snapshot;
+    private final LongAdder                hitCount      = new LongAdder();
+    private final LongAdder                fallbackCount = new LongAdder();
+    private volatile long                  lastRebuildMillis;
+    private Logger logger = LoggerFactory.getLogger( SearchIndex.class );
+
+    /**
+     * @param columns        the columns indexed for each user, as labelled by the list all query
+     * @param refreshSeconds delay between rebuilds; 0 disables the index
+     */
+    public SearchIndex(List<String> columns, long refreshSeconds) {
+        this.columns = columns;
+        this.refreshSeconds = refreshSeconds;
+        this.rebuilder = refreshSeconds > 0 && !columns.isEmpty() ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cmabreu-search-index");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * Schedules the rebuilds, the first one right away.
+     *
+     * @param users streams every user, with its id and search columns; closed after each rebuild
+     */
+    public void start(Supplier<Stream<UserRow>> users) {
+        if (rebuilder == null) {
+            return;
+        }
+        this.users = users;
+        rebuilder.scheduleWithFixedDelay(this::rebuildIndex, 0, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the rows of the users with a search column starting with the term, as read by the list all query, in
+     *         index order and restricted to the given page (maxResults < 0 for all of them), or null when the index
+     *         cannot answer
+     */
+    public List<UserRow> find(String term, int firstResult, int maxResults) {
+        Snapshot current = freshSnapshot();
+        if (current == null) {
+            return null;
+        }
+        List<UserRow> rows = new ArrayList<>();
+        BitSet        seen = new BitSet(current.rows.length);
+        int          skip = Math.max(firstResult, 0);
+        String prefix = SearchStrategy.PREFIX.normalize(term);
+        for (int i = current.lowerBound(prefix), end = current.upperBound(prefix); i < end; i++) {
+            int user = current.users[i];
+            if (seen.get(user)) {
+                continue;
+            }
+            seen.set(user);
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            if (maxResults >= 0 && rows.size() >= maxResults) {
+                break;
+            }
+            rows.add(current.rows[user]);
+        }
+        return rows;
+    }
+
+    /**
+     * @return the number of users with a search column starting with the term, or -1 when the index cannot answer
+     */
+    public int count(String term) {
+        Snapshot current = freshSnapshot();
+        if (current == null) {
+            return -1;
+        }
+        BitSet seen = new BitSet(current.rows.length);
+        String prefix = SearchStrategy.PREFIX.normalize(term);
+        for (int i = current.lowerBound(prefix), end = current.upperBound(prefix); i < end; i++) {
+            seen.set(current.users[i]);
+        }
+        return seen.cardinality();
+    }
+
+    private Snapshot freshSnapshot() {
+        if (rebuilder == null) {
+            return null;
+        }
+        Snapshot current = snapshot;
+        if (current == null || System.currentTimeMillis() - current.builtAt > TimeUnit.SECONDS.toMillis(refreshSeconds * 2)) {
+            fallbackCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        return current;
+    }
+
+    private void rebuildIndex() {
+        long                 started = System.currentTimeMillis();
+        List<UserRow>        rows    = new ArrayList<>();
+        Map<String, Integer> byId    = new HashMap<>();
+        List<Entry>          entries = new ArrayList<>();
+        try (Stream<UserRow> stream = users.get()) {
+            for (UserRow row : (Iterable<UserRow>) stream::iterator) {
+                String id = row.get("id");
+                if (id == null) {
+                    continue;
+                }
+                Integer user = byId.get(id);
+                if (user == null) {
+                    user = rows.size();
+                    byId.put(id, user);
+                    rows.add(row);
+                }
+                for (String column : columns) {
+                    String value = row.get(column);
+                    if (value != null && !value.isEmpty()) {
+                        entries.add(new Entry(value.toLowerCase(Locale.ROOT), user));
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Could not rebuild the search index, keeping the previous one: " + e.getMessage());
+            return;
+        }
+        if (rows.isEmpty()) {
+            // most likely the query failed, not an empty table: an empty index would hide every user
+            logger.warn("No user read while rebuilding the search index, keeping the previous one");
+            return;
+        }
+        entries.sort(Comparator.comparing((Entry entry) -> entry.key).thenComparingInt(entry -> entry.user));
+        snapshot = new Snapshot(entries, rows.toArray(new UserRow[0]));
+        lastRebuildMillis = System.currentTimeMillis() - started;
+        logger.info("Search index rebuilt: users={"+rows.size()+"} entries={"+entries.size()+"} bytes={"+snapshot.memoryBytes+"} millis={"+lastRebuildMillis+"}");
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final int    user;
+
+        private Entry(String key, int user) {
+            this.key = key;
+            this.user = user;
+        }
+    }
+
+    private static final class Snapshot {
+        // Sorted lower case column values and, for each of them, the index of its user row.
+        private final String[]  keys;
+        private final int[]     users;
+        private final UserRow[] rows;
+        private final long     builtAt;
+        private final long     memoryBytes;
+
+        private Snapshot(List<Entry> entries, UserRow[] rows) {
+            this.keys = new String[entries.size()];
+            this.users = new int[entries.size()];
+            this.rows = rows;
+            this.builtAt = System.currentTimeMillis();
+            long bytes = 0;
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = entries.get(i).key;
+                users[i] = entries.get(i).user;
+                bytes += STRING_OVERHEAD + 2L * keys[i].length() + REFERENCE + Integer.BYTES;
+            }
+            for (UserRow row : rows) {
+                bytes += ROW_OVERHEAD + REFERENCE;
+                for (int i = 0; i < row.size(); i++) {
+                    String value = row.get(i);
+                    bytes += REFERENCE + (value == null ? 0 : STRING_OVERHEAD + 2L * value.length());
+                }
+            }
+            this.memoryBytes = bytes;
+        }
+
+        // First key not lower than the prefix.
+        private int lowerBound(String prefix) {
+            int position = Arrays.binarySearch(keys, prefix);
+            return position >= 0 ? firstOf(position) : -position - 1;
+        }
+
+        private int firstOf(int position) {
+            while (position > 0 && keys[position - 1].equals(keys[position])) {
+                position--;
+            }
+            return position;
+        }
+
+        // First key after every key starting with the prefix.
+        private int upperBound(String prefix) {
+            int low  = lowerBound(prefix);
+            int high = keys.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (keys[middle].startsWith(prefix)) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return rebuilder != null;
+    }
+
+    @Override
+    public boolean isFresh() {
+        Snapshot current = snapshot;
+        return current != null && System.currentTimeMillis() - current.builtAt <= TimeUnit.SECONDS.toMillis(refreshSeconds * 2);
+    }
+
+    @Override
+    public long getUserCount() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.rows.length;
+    }
+
+    @Override
+    public long getEntryCount() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.keys.length;
+    }
+
+    /**
+     * Estimated heap used by the index: its strings, user rows and arrays, assuming two bytes per character.
+     */
+    @Override
+    public long getMemoryBytes() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.memoryBytes;
+    }
+
+    @Override
+    public long getLastRebuildTime() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.builtAt;
+    }
+
+    @Override
+    public long getLastRebuildMillis() {
+        return lastRebuildMillis;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    @Override
+    public long getFallbackCount() {
+        return fallbackCount.sum();
+    }
+
+    @Override
+    public void rebuild() {
+        if (rebuilder == null || users == null) {
+            return;
+        }
+        try {
+            rebuilder.execute(this::rebuildIndex);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Search index is closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (rebuilder != null) {
+            rebuilder.shutdownNow();
+        }
+        snapshot = null;
+    }
+}
@@ -0,0 +1,24 @@
+package br.com.cmabreu.dbuserprovider.cache;
+
+public interface SearchIndexMBean {
+
+    boolean isEnabled();
+
+    boolean isFresh();
+
+    long getUserCount();
+
+    long getEntryCount();
+
+    long getMemoryBytes();
+
+    long getLastRebuildTime();
+
+    long getLastRebuildMillis();
+
+    long getHitCount();
+
+    long getFallbackCount();
+
+    void rebuild();
+}
@@ -0,0 +1,186 @@
+package br.com.cmabreu.dbuserprovider.cache;
+
+import java.util.Objects;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import br.com.cmabreu.dbuserprovider.model.UserRow;
+
+/**
+ * Per-component cache of user rows returned by the external database, keyed by external id, by username and by email.
+ * A max size of zero (or less) disables the cache and every lookup goes to the database.
+ * <p>
+ * Independently, a stale store may keep the last row read for each key with no expiry, only bounded in size,
+ * to answer lookups while the database is unavailable.
+ */
+public class UserCache implements UserCacheMBean {
+
+    private enum KeySpace { ID, USERNAME, EMAIL }
+
+    private final Cache<Key, UserRow> cache;
+    private final Cache<Key, UserRow> stale;
+
+    public UserCache(long maxSize, long ttlSeconds, CacheEvictionPolicy evictionPolicy, long staleMaxSize) {
+        if (maxSize > 0 && ttlSeconds > 0) {
+            this.cache = evictionPolicy.apply(CacheBuilder.newBuilder(), ttlSeconds)
+                                       .maximumSize(maxSize)
+                                       .recordStats()
+                                       .build();
+        } else {
+            this.cache = null;
+        }
+        this.stale = staleMaxSize > 0 ? CacheBuilder.newBuilder().maximumSize(staleMaxSize).recordStats().build() : null;
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    public UserRow getById(String id) {
+        return get(KeySpace.ID, id);
+    }
+
+    public UserRow getByUsername(String username) {
+        return get(KeySpace.USERNAME, username);
+    }
+
+    public UserRow getByEmail(String email) {
+        return get(KeySpace.EMAIL, email);
+    }
+
+    /**
+     * Caches the row under its own "id" column and under the username used for the lookup,
+     * which may differ in case from the stored one when the database collation is case insensitive.
+     */
+    public void put(String username, UserRow user) {
+        if (user == null) {
+            return;
+        }
+        put(cache, KeySpace.USERNAME, username, user);
+        put(stale, KeySpace.USERNAME, username, user);
+    }
+
+    /**
+     * Caches the row under its own "id" column and under the email used for the lookup.
+     */
+    public void putByEmail(String email, UserRow user) {
+        if (user == null) {
+            return;
+        }
+        put(cache, KeySpace.EMAIL, email, user);
+        put(stale, KeySpace.EMAIL, email, user);
+    }
+
+    private static void put(Cache<Key, UserRow> cache, KeySpace keySpace, String value, UserRow user) {
+        if (cache == null) {
+            return;
+        }
+        String id = user.get("id");
+        if (id != null) {
+            cache.put(new Key(KeySpace.ID, id), user);
+        }
+        if (value != null) {
+            cache.put(new Key(keySpace, value), user);
+        }
+    }
+
+    /**
+     * @return the last row read for this id, however old, or null
+     */
+    public UserRow getStaleById(String id) {
+        return get(stale, KeySpace.ID, id);
+    }
+
+    /**
+     * @return the last row read for this username, however old, or null
+     */
+    public UserRow getStaleByUsername(String username) {
+        return get(stale, KeySpace.USERNAME, username);
+    }
+
+    /**
+     * @return the last row read for this email, however old, or null
+     */
+    public UserRow getStaleByEmail(String email) {
+        return get(stale, KeySpace.EMAIL, email);
+    }
+
+    private UserRow get(KeySpace keySpace, String value) {
+        return get(cache, keySpace, value);
+    }
+
+    private static UserRow get(Cache<Key, UserRow> cache, KeySpace keySpace, String value) {
+        if (cache == null || value == null) {
+            return null;
+        }
+        return cache.getIfPresent(new Key(keySpace, value));
+    }
+
+    @Override
+    public long getSize() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache == null ? 0 : cache.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache == null ? 0 : cache.stats().missCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache == null ? 0 : cache.stats().evictionCount();
+    }
+
+    @Override
+    public long getStaleSize() {
+        return stale == null ? 0 : stale.size();
+    }
+
+    @Override
+    public long getStaleHitCount() {
+        return stale == null ? 0 : stale.stats().hitCount();
+    }
+
+    @Override
+    public void invalidateAll() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        if (stale != null) {
+            stale.invalidateAll();
+        }
+    }
+
+    private static final class Key {
+        private final KeySpace keySpace;
+        private final String   value;
+
+        private Key(KeySpace keySpace, String value) {
+            this.keySpace = keySpace;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return keySpace == other.keySpace && value.equals(other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(keySpace, value);
+        }
+    }
+}
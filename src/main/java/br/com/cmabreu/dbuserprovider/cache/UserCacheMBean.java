@@ -0,0 +1,18 @@
+package br.com.cmabreu.dbuserprovider.cache;
+
+public interface UserCacheMBean {
+
+    long getSize();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getEvictionCount();
+
+    long getStaleSize();
+
+    long getStaleHitCount();
+
+    void invalidateAll();
+}
@@ -0,0 +1,96 @@
+package br.com.cmabreu.dbuserprovider.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import br.com.cmabreu.dbuserprovider.persistence.RDBMS;
+import br.com.cmabreu.dbuserprovider.util.QueryTemplate;
+
+/**
+ * A filtered user search pushed down into SQL: the list all users query, or the search term query when a term is
+ * given, wrapped in a WHERE clause with one placeholder per filtered attribute on its mapped column.
+ * <p>
+ * Like Keycloak's own user store, username, email, first and last name match case insensitively on a substring
+ * unless an exact search is asked for; any other attribute, and every attribute of an exact search, matches its
+ * value exactly, so an index on the column can be used. Offset and limit of paged searches stay bound parameters.
+ */
+public class AttributeFilter {
+
+    private static final String ALIAS  = "attrs_";
+    private static final char   ESCAPE = '!';
+
+    private final List<String>  attributes;
+    private final List<Boolean> substring;
+    private final boolean       searchTerm;
+    private final QueryTemplate listTemplate;
+    private final QueryTemplate countTemplate;
+
+    /**
+     * @param columns the filtered attributes, in a stable order, with the query column label each one filters on
+     * @param base    the configured query the filter wraps: the search term query or the list all users query
+     */
+    AttributeFilter(Map<String, String> columns, boolean exact, boolean searchTerm, String base, QueryTemplate baseTemplate, RDBMS rdbms) {
+        this.attributes = new ArrayList<>(columns.keySet());
+        this.substring = new ArrayList<>();
+        this.searchTerm = searchTerm;
+
+        StringBuilder where = new StringBuilder();
+        for (Map.Entry<String, String> column : columns.entrySet()) {
+            boolean like   = !exact && isSubstringAttribute(column.getKey());
+            String  quoted = ALIAS + "." + rdbms.getDialect().openQuote() + column.getValue() + rdbms.getDialect().closeQuote();
+            where.append(where.length() == 0 ? " where " : " and ")
+                 .append(like ? "lower(" + quoted + ") like ? escape '" + ESCAPE + "'" : quoted + " = ?");
+            substring.add(like);
+        }
+        String filtered = String.format("select * from (%s) %s%s", base, ALIAS, where);
+        int[]  indexes  = QueryTemplate.wrapParameterIndexes(baseTemplate, columns.size());
+        this.listTemplate = QueryTemplate.compile(filtered, rdbms, indexes);
+        this.countTemplate = QueryTemplate.compile(String.format("select count(*) from (%s) count", filtered), rdbms, indexes);
+    }
+
+    private static boolean isSubstringAttribute(String attribute) {
+        switch (attribute) {
+            case "username":
+            case "email":
+            case "firstName":
+            case "lastName":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the query parameters: the search term, if the filter wraps the search query, then one per attribute
+     */
+    public Object[] parameters(String search, Map<String, String> values) {
+        Object[] params = new Object[attributes.size() + 1];
+        params[0] = searchTerm ? search : null;
+        for (int i = 0; i < attributes.size(); i++) {
+            String value = values.get(attributes.get(i));
+            params[i + 1] = substring.get(i) ? "%" + escapeLike(value.toLowerCase(Locale.ROOT)) + "%" : value;
+        }
+        return params;
+    }
+
+    private static String escapeLike(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (char ch : value.toCharArray()) {
+            if (ch == ESCAPE || ch == '%' || ch == '_') {
+                escaped.append(ESCAPE);
+            }
+            escaped.append(ch);
+        }
+        return escaped.toString();
+    }
+
+    public QueryTemplate getListTemplate() {
+        return listTemplate;
+    }
+
+    public QueryTemplate getCountTemplate() {
+        return countTemplate;
+    }
+}
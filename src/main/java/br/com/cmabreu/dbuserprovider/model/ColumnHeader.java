@@ -0,0 +1,90 @@
+package br.com.cmabreu.dbuserprovider.model;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column labels of a result set, read once per statement and shared by every {@link UserRow} it produces.
+ * Repeated labels are kept once, pointing at their first column.
+ */
+public final class ColumnHeader {
+
+    private final String[]             labels;
+    private final int[]                columnIndexes;
+    private final Map<String, Integer> positions;
+
+    private ColumnHeader(String[] labels, int[] columnIndexes) {
+        this.labels = labels;
+        this.columnIndexes = columnIndexes;
+        this.positions = new HashMap<>(labels.length * 2);
+        for (int i = 0; i < labels.length; i++) {
+            positions.put(labels[i], i);
+        }
+    }
+
+    public static ColumnHeader of(ResultSetMetaData metaData) throws SQLException {
+        int           columnCount = metaData.getColumnCount();
+        List<String>  labels      = new ArrayList<>(columnCount);
+        List<Integer> indexes     = new ArrayList<>(columnCount);
+        for (int i = 1; i <= columnCount; i++) {
+            String label = metaData.getColumnLabel(i);
+            if (!labels.contains(label)) {
+                labels.add(label);
+                indexes.add(i);
+            }
+        }
+        return new ColumnHeader(labels.toArray(new String[0]), indexes.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    public int size() {
+        return labels.length;
+    }
+
+    public String getLabel(int position) {
+        return labels[position];
+    }
+
+    /**
+     * @return the 1-based JDBC column index backing the given position
+     */
+    public int getColumnIndex(int position) {
+        return columnIndexes[position];
+    }
+
+    /**
+     * @return the position of the label, or -1 when the result set has no such column
+     */
+    public int indexOf(String label) {
+        Integer position = positions.get(label);
+        return position == null ? -1 : position;
+    }
+
+    public int indexOfIgnoreCase(String label) {
+        int position = indexOf(label);
+        for (int i = 0; position < 0 && i < labels.length; i++) {
+            if (labels[i].equalsIgnoreCase(label)) {
+                position = i;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @return a header without the column at the given position
+     */
+    public ColumnHeader without(int position) {
+        String[] newLabels  = new String[labels.length - 1];
+        int[]    newIndexes = new int[labels.length - 1];
+        for (int i = 0, j = 0; i < labels.length; i++) {
+            if (i != position) {
+                newLabels[j] = labels[i];
+                newIndexes[j++] = columnIndexes[i];
+            }
+        }
+        return new ColumnHeader(newLabels, newIndexes);
+    }
+}
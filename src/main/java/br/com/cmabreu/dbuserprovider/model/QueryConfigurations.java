@@ -1,6 +1,23 @@
 package br.com.cmabreu.dbuserprovider.model;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import br.com.cmabreu.dbuserprovider.persistence.IdType;
 import br.com.cmabreu.dbuserprovider.persistence.RDBMS;
+import br.com.cmabreu.dbuserprovider.persistence.SearchStrategy;
+import br.com.cmabreu.dbuserprovider.util.QueryTemplate;
+import br.com.cmabreu.dbuserprovider.util.SqlParameter;
 
 public class QueryConfigurations {
 
@@ -8,24 +25,125 @@ public class QueryConfigurations {
     private String listAll;
     private String findById;
     private String findByUsername;
+    private String findByEmail;
     private String findBySearchTerm;
     private String findPasswordHash;
+    private String findUserForLogin;
     private String hashFunction;
     private RDBMS  RDBMS;
     private boolean allowKeycloakDelete;
     private boolean allowDatabaseToOverwriteKeycloak;
+    private int     streamFetchSize;
+    private int     streamMaxResults;
+    private String  keysetColumn;
+    private String  approximateCountTable;
+    private final Map<String, String> attributeColumns;
+    private final SearchStrategy searchStrategy;
+    private final List<String>   searchColumns;
+    private final int            searchMinLength;
+    private final Function<String, SqlParameter> idBinder;
+    // Filtered search queries, built on first use for each combination of filtered attributes.
+    private final ConcurrentMap<String, AttributeFilter> attributeFilters = new ConcurrentHashMap<>();
+
+    private final QueryTemplate countTemplate;
+    private final QueryTemplate countBySearchTermTemplate;
+    private final QueryTemplate listAllTemplate;
+    private final QueryTemplate findByIdTemplate;
+    private final QueryTemplate findByUsernameTemplate;
+    private final QueryTemplate findByEmailTemplate;
+    private final QueryTemplate findBySearchTermTemplate;
+    private final QueryTemplate findPasswordHashTemplate;
+    private final QueryTemplate findUserForLoginTemplate;
+    private final QueryTemplate approximateCountTemplate;
+    private final QueryTemplate keysetListAllTemplate;
+    private final QueryTemplate keysetListAllAfterTemplate;
+    private final QueryTemplate keysetSearchTemplate;
+    private final QueryTemplate keysetSearchAfterTemplate;
 
-    public QueryConfigurations(String count, String listAll, String findById, String findByUsername, String findBySearchTerm, String findPasswordHash, String hashFunction, RDBMS RDBMS, boolean allowKeycloakDelete, boolean allowDatabaseToOverwriteKeycloak) {
+    public QueryConfigurations(String count, String listAll, String findById, String findByUsername, String findByEmail, String findBySearchTerm, String findPasswordHash, String findUserForLogin, String hashFunction, RDBMS RDBMS, boolean allowKeycloakDelete, boolean allowDatabaseToOverwriteKeycloak, int streamFetchSize, int streamMaxResults, String keysetColumn, String approximateCountTable, String attributeColumns, SearchStrategy searchStrategy, String searchColumns, int searchMinLength, IdType idType) {
         this.count = count;
         this.listAll = listAll;
         this.findById = findById;
         this.findByUsername = findByUsername;
-        this.findBySearchTerm = findBySearchTerm;
+        this.findByEmail = findByEmail;
+        this.searchColumns = parseSearchColumns(searchColumns);
+        String searchQuery = searchStrategy.query(listAll, this.searchColumns, RDBMS);
+        this.findBySearchTerm = searchQuery != null ? searchQuery : findBySearchTerm;
         this.findPasswordHash = findPasswordHash;
+        this.findUserForLogin = findUserForLogin;
         this.hashFunction = hashFunction;
         this.RDBMS = RDBMS;
         this.allowKeycloakDelete = allowKeycloakDelete;
         this.allowDatabaseToOverwriteKeycloak = allowDatabaseToOverwriteKeycloak;
+        this.streamFetchSize = streamFetchSize;
+        this.streamMaxResults = streamMaxResults;
+        this.keysetColumn = keysetColumn == null || keysetColumn.trim().isEmpty() ? null : keysetColumn.trim();
+        this.approximateCountTable = approximateCountTable == null || approximateCountTable.trim().isEmpty() ? null : approximateCountTable.trim();
+        this.attributeColumns = parseAttributeColumns(attributeColumns);
+        this.searchStrategy = searchStrategy;
+        this.searchMinLength = searchMinLength;
+        this.idBinder = idType.binder(RDBMS);
+
+        this.countTemplate = QueryTemplate.compile(count, RDBMS);
+        this.countBySearchTermTemplate = this.findBySearchTerm == null ? null : QueryTemplate.compile(String.format("select count(*) from (%s) count", this.findBySearchTerm), RDBMS);
+        this.listAllTemplate = QueryTemplate.compile(listAll, RDBMS);
+        this.findByIdTemplate = QueryTemplate.compile(findById, RDBMS);
+        this.findByUsernameTemplate = QueryTemplate.compile(findByUsername, RDBMS);
+        this.findByEmailTemplate = QueryTemplate.compile(findByEmail, RDBMS);
+        this.findBySearchTermTemplate = QueryTemplate.compile(this.findBySearchTerm, RDBMS);
+        this.findPasswordHashTemplate = QueryTemplate.compile(findPasswordHash, RDBMS);
+        this.findUserForLoginTemplate = QueryTemplate.compile(findUserForLogin, RDBMS);
+        this.approximateCountTemplate = this.approximateCountTable == null ? null : QueryTemplate.compile(RDBMS.getApproximateCountQuery(), RDBMS);
+
+        if (this.keysetColumn != null) {
+            String key = "keyset_." + RDBMS.getDialect().openQuote() + this.keysetColumn + RDBMS.getDialect().closeQuote();
+            this.keysetListAllTemplate = QueryTemplate.compile(String.format("select * from (%s) keyset_ order by %s", listAll, key), RDBMS);
+            this.keysetListAllAfterTemplate = QueryTemplate.compile(String.format("select * from (%s) keyset_ where %s > ? order by %s", listAll, key, key), RDBMS,
+                                                                    QueryTemplate.wrapParameterIndexes(listAllTemplate, 1));
+            this.keysetSearchTemplate = QueryTemplate.compile(String.format("select * from (%s) keyset_ order by %s", this.findBySearchTerm, key), RDBMS);
+            this.keysetSearchAfterTemplate = QueryTemplate.compile(String.format("select * from (%s) keyset_ where %s > ? order by %s", this.findBySearchTerm, key, key), RDBMS,
+                                                                   QueryTemplate.wrapParameterIndexes(findBySearchTermTemplate, 1));
+        } else {
+            this.keysetListAllTemplate = null;
+            this.keysetListAllAfterTemplate = null;
+            this.keysetSearchTemplate = null;
+            this.keysetSearchAfterTemplate = null;
+        }
+    }
+
+    /**
+     * Parses "attribute=column" pairs separated by semicolons or new lines; a lone name maps to the column of the
+     * same label.
+     */
+    private static Map<String, String> parseAttributeColumns(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> columns = new LinkedHashMap<>();
+        for (String pair : value.split("[;\\r\\n]+")) {
+            int    separator = pair.indexOf('=');
+            String attribute = (separator < 0 ? pair : pair.substring(0, separator)).trim();
+            String column    = separator < 0 ? attribute : pair.substring(separator + 1).trim();
+            if (!attribute.isEmpty() && !column.isEmpty()) {
+                columns.put(attribute, column);
+            }
+        }
+        return Collections.unmodifiableMap(columns);
+    }
+
+    private static List<String> parseSearchColumns(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Arrays.stream(value.split("[;,\\r\\n]+")).map(String::trim).filter(column -> !column.isEmpty()).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the id as a query parameter of the configured id type
+     * @throws IllegalArgumentException when the id is not of that type
+     */
+    public SqlParameter toIdParameter(String id) {
+        return idBinder.apply(id);
     }
 
     public RDBMS getRDBMS() {
@@ -48,6 +166,10 @@ public class QueryConfigurations {
         return findByUsername;
     }
 
+    public String getFindByEmail() {
+        return findByEmail;
+    }
+
     public String getFindBySearchTerm() {
         return findBySearchTerm;
     }
@@ -56,10 +178,154 @@ public class QueryConfigurations {
         return findPasswordHash;
     }
 
+    public String getFindUserForLogin() {
+        return findUserForLogin;
+    }
+
+    public boolean hasEmailQuery() {
+        return findByEmailTemplate != null;
+    }
+
+    public boolean hasLoginQuery() {
+        return findUserForLogin != null && !findUserForLogin.trim().isEmpty();
+    }
+
+    public SearchStrategy getSearchStrategy() {
+        return searchStrategy;
+    }
+
+    /**
+     * @return the column labels of the list all query the search strategy and the search index match the term on
+     */
+    public List<String> getSearchColumns() {
+        return searchColumns;
+    }
+
+    /**
+     * @return the length under which a normalised search term is not searched at all
+     */
+    public int getSearchMinLength() {
+        return searchMinLength;
+    }
+
     public String getHashFunction() {
         return hashFunction;
     }
 
+    public QueryTemplate getCountTemplate() {
+        return countTemplate;
+    }
+
+    public QueryTemplate getCountBySearchTermTemplate() {
+        return countBySearchTermTemplate;
+    }
+
+    public QueryTemplate getListAllTemplate() {
+        return listAllTemplate;
+    }
+
+    public QueryTemplate getFindByIdTemplate() {
+        return findByIdTemplate;
+    }
+
+    public QueryTemplate getFindByUsernameTemplate() {
+        return findByUsernameTemplate;
+    }
+
+    public QueryTemplate getFindByEmailTemplate() {
+        return findByEmailTemplate;
+    }
+
+    public QueryTemplate getFindBySearchTermTemplate() {
+        return findBySearchTermTemplate;
+    }
+
+    public QueryTemplate getFindPasswordHashTemplate() {
+        return findPasswordHashTemplate;
+    }
+
+    public QueryTemplate getFindUserForLoginTemplate() {
+        return findUserForLoginTemplate;
+    }
+
+    /**
+     * @return the planner statistics query of the RDBMS, or null when approximate counts are off
+     */
+    public QueryTemplate getApproximateCountTemplate() {
+        return approximateCountTemplate;
+    }
+
+    public String getApproximateCountTable() {
+        return approximateCountTable;
+    }
+
+    /**
+     * @return the configured templates run by user and credential lookups
+     */
+    public List<QueryTemplate> getLookupTemplates() {
+        return configured(findByIdTemplate, findByUsernameTemplate, findByEmailTemplate, findPasswordHashTemplate, findUserForLoginTemplate);
+    }
+
+    /**
+     * @return the configured templates run by listings, searches and counts
+     */
+    public List<QueryTemplate> getListingTemplates() {
+        return configured(countTemplate, countBySearchTermTemplate, approximateCountTemplate, listAllTemplate, findBySearchTermTemplate,
+                          keysetListAllTemplate, keysetListAllAfterTemplate, keysetSearchTemplate, keysetSearchAfterTemplate);
+    }
+
+    private static List<QueryTemplate> configured(QueryTemplate... templates) {
+        return Arrays.stream(templates).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    public boolean isKeysetPagination() {
+        return keysetColumn != null;
+    }
+
+    public String getKeysetColumn() {
+        return keysetColumn;
+    }
+
+    /**
+     * @return the list or search query ordered by the keyset column, for the first page
+     */
+    public QueryTemplate getKeysetTemplate(boolean search) {
+        return search ? keysetSearchTemplate : keysetListAllTemplate;
+    }
+
+    /**
+     * @return the list or search query ordered by the keyset column, restricted to keys after parameter 1
+     */
+    public QueryTemplate getKeysetAfterTemplate(boolean search) {
+        return search ? keysetSearchAfterTemplate : keysetListAllAfterTemplate;
+    }
+
+    /**
+     * @return whether the attribute can be filtered on in SQL
+     */
+    public boolean isSearchableAttribute(String attribute) {
+        return attributeColumns.containsKey(attribute);
+    }
+
+    /**
+     * @param attributes the attributes to filter on, all of them {@link #isSearchableAttribute searchable}
+     * @param search     whether the filter applies to the search term query rather than the list all users query
+     * @return the filtered search, or null when an attribute is not mapped or the wrapped query is not configured
+     */
+    public AttributeFilter getAttributeFilter(Set<String> attributes, boolean exact, boolean search) {
+        QueryTemplate baseTemplate = search ? findBySearchTermTemplate : listAllTemplate;
+        if (baseTemplate == null || !attributeColumns.keySet().containsAll(attributes)) {
+            return null;
+        }
+        Set<String> sorted = new TreeSet<>(attributes);
+        String      key    = sorted + "|" + exact + "|" + search;
+        return attributeFilters.computeIfAbsent(key, k -> {
+            Map<String, String> columns = new LinkedHashMap<>();
+            sorted.forEach(attribute -> columns.put(attribute, attributeColumns.get(attribute)));
+            return new AttributeFilter(columns, exact, search, search ? findBySearchTerm : listAll, baseTemplate, RDBMS);
+        });
+    }
+
     public boolean isBlowfish() {
         return hashFunction.toLowerCase().contains("blowfish");
     }
@@ -71,4 +337,12 @@ public class QueryConfigurations {
     public boolean getAllowDatabaseToOverwriteKeycloak() {
         return allowDatabaseToOverwriteKeycloak;
     }
+
+    public int getStreamFetchSize() {
+        return streamFetchSize;
+    }
+
+    public int getStreamMaxResults() {
+        return streamMaxResults;
+    }
 }
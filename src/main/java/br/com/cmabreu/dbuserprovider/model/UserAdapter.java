@@ -3,7 +3,6 @@ package br.com.cmabreu.dbuserprovider.model;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -23,24 +22,26 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage {
     private       String username;
     private Logger logger = LoggerFactory.getLogger( UserAdapter.class );
     
-    public UserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, Map<String, String> data, boolean allowDatabaseToOverwriteKeycloak) {
+    public UserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, UserRow data, boolean allowDatabaseToOverwriteKeycloak) {
     	super(session, realm, model);
         this.keycloakId = StorageId.keycloakId(model, data.get("id"));
         this.username = data.get("username");
     	logger.info( "UserAdapter constructor, username={0}", this.username );
         try {
           Map<String, List<String>> attributes = this.getAttributes();
-          for (Entry<String, String> e : data.entrySet()) {
+          ColumnHeader header = data.getHeader();
+          for (int i = 0; i < data.size(); i++) {
+              String       name      = header.getLabel(i);
               Set<String>  newValues = new HashSet<>();
               if (!allowDatabaseToOverwriteKeycloak) {
-                List<String> attribute = attributes.get(e.getKey());
+                List<String> attribute = attributes.get(name);
                 if (attribute != null) {
                     newValues.addAll(attribute);
                 }
               }
-              newValues.add(StringUtils.trimToNull(e.getValue()));
-              logger.info("  > " + e.getKey() );
-              this.setAttribute(e.getKey(), newValues.stream().filter(Objects::nonNull).collect(Collectors.toList()));
+              newValues.add(StringUtils.trimToNull(data.get(i)));
+              logger.info("  > " + name );
+              this.setAttribute(name, newValues.stream().filter(Objects::nonNull).collect(Collectors.toList()));
           }
         } catch(Exception e) {
         	logger.error( e.getMessage() );
@@ -0,0 +1,63 @@
+package br.com.cmabreu.dbuserprovider.model;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * One user row from the external database: a plain array of values laid out by a {@link ColumnHeader}
+ * shared with every other row of the same statement. Rows are immutable and safe to cache.
+ */
+public final class UserRow {
+
+    private final ColumnHeader header;
+    private final String[]     values;
+
+    private UserRow(ColumnHeader header, String[] values) {
+        this.header = header;
+        this.values = values;
+    }
+
+    /**
+     * Reads the current row of the result set, by column index.
+     */
+    public static UserRow read(ResultSet rs, ColumnHeader header) throws SQLException {
+        String[] values = new String[header.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rs.getString(header.getColumnIndex(i));
+        }
+        return new UserRow(header, values);
+    }
+
+    public ColumnHeader getHeader() {
+        return header;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public String get(int position) {
+        return values[position];
+    }
+
+    /**
+     * @return the value of the column, or null when the column is absent or SQL NULL
+     */
+    public String get(String label) {
+        int position = header.indexOf(label);
+        return position < 0 ? null : values[position];
+    }
+
+    /**
+     * @return this row without the given column, using a header built for the purpose
+     */
+    public UserRow without(ColumnHeader newHeader, int position) {
+        String[] newValues = new String[values.length - 1];
+        for (int i = 0, j = 0; i < values.length; i++) {
+            if (i != position) {
+                newValues[j++] = values[i];
+            }
+        }
+        return new UserRow(newHeader, newValues);
+    }
+}
@@ -2,13 +2,18 @@ package br.com.cmabreu.dbuserprovider.persistence;
 
 
 import java.io.Closeable;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Optional;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-import javax.sql.DataSource;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -16,55 +21,269 @@ import org.slf4j.LoggerFactory;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 
-public class DataSourceProvider implements Closeable {
+/**
+ * Gives a component access to its connection pools, shared with the other components having the same database,
+ * credentials and pool settings (see {@link SharedPools}). Reconfiguring it swaps in new pools right away; a previous
+ * pool no other component uses stops handing out connections but is only closed once its borrowed connections are
+ * returned (or the drain timeout elapses), so queries running during the swap complete normally.
+ */
+public class DataSourceProvider implements DataSourceProviderMBean, Closeable {
     
-    private static final SimpleDateFormat SIMPLE_DATE_FORMAT = new SimpleDateFormat("dd-MM-YYYY HH:mm:ss");
+    // Immutable, unlike SimpleDateFormat: pools of several components are created concurrently.
+    private static final DateTimeFormatter POOL_DATE_FORMAT  = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
+    private static final long             DRAIN_POLL_MILLIS  = 100;
     private              ExecutorService  executor           = Executors.newFixedThreadPool(1);
     private              HikariDataSource hikariDataSource;
+    private              HikariDataSource replicaDataSource;
+    private              long             replicaRetryMillis;
+    private volatile     long             replicaDownUntil;
+    private              long             drainTimeoutMillis;
+    private final        Set<HikariDataSource> draining      = ConcurrentHashMap.newKeySet();
+    private final        AtomicLong       swapCount          = new AtomicLong();
+    private final        AtomicLong       forcedCloseCount   = new AtomicLong();
+    private final        AtomicLong       lastDrainNanos     = new AtomicLong();
+    private final        LongAdder        borrowCount        = new LongAdder();
+    private final        LongAdder        borrowNanos        = new LongAdder();
+    private final        String           componentId;
     private Logger logger = LoggerFactory.getLogger( DataSourceProvider.class );
     
-    public DataSourceProvider() {
+    /**
+     * @param componentId the component the pools are used by, for sharing and usage accounting
+     */
+    public DataSourceProvider(String componentId) {
+        this.componentId = componentId;
+    }
+    
+    
+    /**
+     * Borrows a connection for the given kind of query. Listings go to the read replica, if any, unless it recently
+     * failed to hand out a connection: it is then left aside for the retry interval and the primary serves them.
+     */
+    Connection getConnection(QueryKind kind) throws SQLException {
+        HikariDataSource primary;
+        HikariDataSource replica;
+        synchronized (this) {
+            primary = hikariDataSource;
+            replica = replicaDataSource;
+        }
+        long started = System.nanoTime();
+        try {
+            if (kind == QueryKind.LISTING && replica != null && System.currentTimeMillis() >= replicaDownUntil) {
+                try {
+                    return replica.getConnection();
+                } catch (SQLException e) {
+                    replicaDownUntil = System.currentTimeMillis() + replicaRetryMillis;
+                    logger.warn("Read replica unavailable, using the primary database for " + replicaRetryMillis + " ms: " + e.getMessage());
+                }
+            }
+            if (primary == null) {
+                throw new SQLException("No database connection is present");
+            }
+            return primary.getConnection();
+        } finally {
+            borrowCount.increment();
+            borrowNanos.add(System.nanoTime() - started);
+        }
     }
     
     
-    synchronized Optional<DataSource> getDataSource() {
-        return Optional.ofNullable(hikariDataSource);
+    synchronized boolean hasReplica() {
+        return replicaDataSource != null;
     }
     
+    /**
+     * @return true when the pool serving the given kind of query was not warmed up yet, by this component or another
+     *         one sharing it
+     */
+    boolean claimWarmUp(QueryKind kind) {
+        HikariDataSource pool;
+        synchronized (this) {
+            pool = kind == QueryKind.LISTING && replicaDataSource != null ? replicaDataSource : hikariDataSource;
+        }
+        return pool != null && SharedPools.claimWarmUp(pool);
+    }
     
-    public void configure(String url, RDBMS rdbms, String user, String pass, String name) {
+    /**
+     * @param drainTimeoutSeconds how long pools replaced by this call may keep serving borrowed connections
+     */
+    public void configure(String url, String replicaUrl, long replicaRetrySeconds, long drainTimeoutSeconds, RDBMS rdbms, String user, String pass, String name, PoolSettings poolSettings) {
+        HikariDataSource newDS = SharedPools.acquire(url, user, pass, rdbms, poolSettings, false, componentId,
+                                                     () -> createDataSource(url, rdbms, user, pass, name, poolSettings, false));
+        HikariDataSource newReplica = null;
+        if (StringUtils.isNotBlank(replicaUrl)) {
+            try {
+                newReplica = SharedPools.acquire(replicaUrl, user, pass, rdbms, poolSettings, true, componentId,
+                                                 () -> createDataSource(replicaUrl, rdbms, user, pass, name + "-REPLICA", poolSettings, true));
+            } catch (RuntimeException e) {
+                // the current pools stay in place: give back the new primary pool unused
+                if (SharedPools.release(newDS, componentId)) {
+                    newDS.close();
+                }
+                throw e;
+            }
+        }
+        HikariDataSource old;
+        HikariDataSource oldReplica;
+        synchronized (this) {
+            old = this.hikariDataSource;
+            oldReplica = this.replicaDataSource;
+            this.hikariDataSource = newDS;
+            this.replicaDataSource = newReplica;
+            this.replicaRetryMillis = TimeUnit.SECONDS.toMillis(replicaRetrySeconds);
+            this.replicaDownUntil = 0;
+            this.drainTimeoutMillis = TimeUnit.SECONDS.toMillis(drainTimeoutSeconds);
+        }
+        if (old != null) {
+            swapCount.incrementAndGet();
+        }
+        disposeOldDataSource(old);
+        disposeOldDataSource(oldReplica);
+    }
+    
+    private HikariDataSource createDataSource(String url, RDBMS rdbms, String user, String pass, String name, PoolSettings poolSettings, boolean replica) {
         HikariConfig hikariConfig = new HikariConfig();
         hikariConfig.setUsername(user);
         hikariConfig.setPassword(pass);
-        hikariConfig.setPoolName(StringUtils.capitalize("CMABREU-USER-PROVIDER-" + name + SIMPLE_DATE_FORMAT.format(new Date())));
+        hikariConfig.setPoolName(StringUtils.capitalize("CMABREU-USER-PROVIDER-" + name + POOL_DATE_FORMAT.format(LocalDateTime.now())));
         hikariConfig.setJdbcUrl(url);
-        hikariConfig.setConnectionTestQuery(rdbms.getTestString());
+        if (rdbms.isTestQueryRequired()) {
+            hikariConfig.setConnectionTestQuery(rdbms.getTestString());
+        }
         hikariConfig.setDriverClassName(rdbms.getDriver());
-        HikariDataSource newDS = new HikariDataSource(hikariConfig);
-        newDS.validate();
-        HikariDataSource old = this.hikariDataSource;
-        this.hikariDataSource = newDS;
-        disposeOldDataSource(old);
+        poolSettings.applyTo(hikariConfig, rdbms);
+        if (replica) {
+            // a replica being down must not prevent the component from starting, the primary covers for it
+            hikariConfig.setInitializationFailTimeout(-1);
+        }
+        HikariDataSource dataSource = new HikariDataSource(hikariConfig);
+        dataSource.validate();
+        return dataSource;
     }
     
     private void disposeOldDataSource(HikariDataSource old) {
+        if (old == null || !SharedPools.release(old, componentId)) {
+            return;
+        }
+        draining.add(old);
+        // idle connections are closed now, borrowed ones as soon as they are returned
+        HikariPoolMXBean pool = old.getHikariPoolMXBean();
+        if (pool != null) {
+            pool.softEvictConnections();
+        }
         executor.submit(() -> {
             try {
-                if (old != null) {
-                    old.close();
-                }
+                drain(old);
             } catch (Exception e) {
             	logger.error( e.getMessage(), e );
+            } finally {
+                draining.remove(old);
+                old.close();
             }
         });
     }
     
+    private void drain(HikariDataSource old) throws InterruptedException {
+        long started  = System.nanoTime();
+        long deadline = started + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        int  active   = activeConnections(old);
+        while (active > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(DRAIN_POLL_MILLIS);
+            active = activeConnections(old);
+        }
+        lastDrainNanos.set(System.nanoTime() - started);
+        if (active > 0) {
+            forcedCloseCount.incrementAndGet();
+            logger.warn("Closing pool {"+old.getPoolName()+"} with {"+active+"} connections still in use after {"+drainTimeoutMillis+"} ms");
+        } else {
+            logger.info("Pool {"+old.getPoolName()+"} drained in {"+TimeUnit.NANOSECONDS.toMillis(lastDrainNanos.get())+"} ms");
+        }
+    }
+    
+    private static int activeConnections(HikariDataSource dataSource) {
+        HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        return pool == null ? 0 : pool.getActiveConnections();
+    }
+    
+    private synchronized HikariPoolMXBean primaryPool() {
+        return hikariDataSource == null ? null : hikariDataSource.getHikariPoolMXBean();
+    }
+    
+    @Override
+    public int getActiveConnections() {
+        HikariPoolMXBean pool = primaryPool();
+        return pool == null ? 0 : pool.getActiveConnections();
+    }
+    
+    @Override
+    public int getIdleConnections() {
+        HikariPoolMXBean pool = primaryPool();
+        return pool == null ? 0 : pool.getIdleConnections();
+    }
+    
+    @Override
+    public int getThreadsAwaitingConnection() {
+        HikariPoolMXBean pool = primaryPool();
+        return pool == null ? 0 : pool.getThreadsAwaitingConnection();
+    }
+    
+    @Override
+    public String getSharedWith() {
+        HikariDataSource primary;
+        synchronized (this) {
+            primary = hikariDataSource;
+        }
+        List<String> users = SharedPools.users(primary);
+        users.remove(componentId);
+        return String.join(",", users);
+    }
+    
+    @Override
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+    
+    @Override
+    public double getAverageBorrowMillis() {
+        long count = borrowCount.sum();
+        return count == 0 ? 0 : borrowNanos.sum() / 1_000_000d / count;
+    }
+    
+    @Override
+    public int getDrainingPoolCount() {
+        return draining.size();
+    }
+    
+    @Override
+    public int getDrainingActiveConnections() {
+        return draining.stream().mapToInt(DataSourceProvider::activeConnections).sum();
+    }
+    
+    @Override
+    public long getSwapCount() {
+        return swapCount.get();
+    }
+    
+    @Override
+    public long getForcedCloseCount() {
+        return forcedCloseCount.get();
+    }
+    
+    @Override
+    public double getLastDrainMillis() {
+        return lastDrainNanos.get() / 1_000_000d;
+    }
+    
     @Override
     public void close() {
         executor.shutdownNow();
-        if (hikariDataSource != null) {
+        if (hikariDataSource != null && SharedPools.release(hikariDataSource, componentId)) {
             hikariDataSource.close();
         }
+        if (replicaDataSource != null && SharedPools.release(replicaDataSource, componentId)) {
+            replicaDataSource.close();
+        }
+        draining.forEach(HikariDataSource::close);
     }
 }
@@ -0,0 +1,26 @@
+package br.com.cmabreu.dbuserprovider.persistence;
+
+public interface DataSourceProviderMBean {
+
+    int getActiveConnections();
+
+    int getIdleConnections();
+
+    int getThreadsAwaitingConnection();
+
+    String getSharedWith();
+
+    long getBorrowCount();
+
+    double getAverageBorrowMillis();
+
+    int getDrainingPoolCount();
+
+    int getDrainingActiveConnections();
+
+    long getSwapCount();
+
+    long getForcedCloseCount();
+
+    double getLastDrainMillis();
+}
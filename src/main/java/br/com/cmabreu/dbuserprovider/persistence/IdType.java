@@ -0,0 +1,76 @@
+package br.com.cmabreu.dbuserprovider.persistence;
+
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import br.com.cmabreu.dbuserprovider.util.SqlParameter;
+
+/**
+ * SQL type of the user id column. The id Keycloak passes around is a string; it is bound with the exact JDBC type of
+ * the column so the lookup by id can seek the primary key index instead of converting every row.
+ */
+public enum IdType {
+    INTEGER("Integer"),
+    LONG("Long (bigint)"),
+    UUID("UUID"),
+    VARCHAR("String (VARCHAR)"),
+    NVARCHAR("String (NVARCHAR)");
+
+    private final String desc;
+
+    IdType(String desc) {
+        this.desc = desc;
+    }
+
+    public static IdType getByDescription(String desc) {
+        for (IdType value : values()) {
+            if (value.desc.equals(desc)) {
+                return value;
+            }
+        }
+        return INTEGER;
+    }
+
+    public static List<String> getAllDescriptions() {
+        return Arrays.stream(values()).map(IdType::getDesc).collect(Collectors.toList());
+    }
+
+    public String getDesc() {
+        return desc;
+    }
+
+    /**
+     * Resolves, for the given database, how an id is turned into a query parameter. The returned function throws
+     * {@link IllegalArgumentException} for an id that is not of this type.
+     */
+    public Function<String, SqlParameter> binder(RDBMS rdbms) {
+        switch (this) {
+            case LONG:
+                return id -> new SqlParameter(Long.valueOf(id), Types.BIGINT);
+            case UUID:
+                if (rdbms == RDBMS.POSTGRESQL) {
+                    // native uuid column
+                    return id -> new SqlParameter(java.util.UUID.fromString(id), Types.OTHER);
+                }
+                // uniqueidentifier (SQL Server) converts the string parameter, other databases store UUIDs as text
+                return id -> {
+                    java.util.UUID.fromString(id);
+                    return new SqlParameter(id, Types.VARCHAR);
+                };
+            case VARCHAR:
+                // jTDS sends every string as unicode unless the sendStringParametersAsUnicode=false driver property is set
+                return id -> new SqlParameter(id, Types.VARCHAR);
+            case NVARCHAR:
+                // only Oracle needs to be told: the other drivers bind strings as unicode already or make no difference
+                int sqlType = rdbms == RDBMS.ORACLE ? Types.NVARCHAR : Types.VARCHAR;
+                return id -> new SqlParameter(id, sqlType);
+            case INTEGER:
+            default:
+                return id -> new SqlParameter(Integer.valueOf(id), Types.INTEGER);
+        }
+    }
+}
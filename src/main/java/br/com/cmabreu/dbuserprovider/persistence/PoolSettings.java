@@ -0,0 +1,89 @@
+package br.com.cmabreu.dbuserprovider.persistence;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.zaxxer.hikari.HikariConfig;
+
+/**
+ * Connection pool sizing and timeouts of a component, plus the driver properties added to those of its {@link RDBMS}.
+ * Times are in milliseconds; zero disables keepalive and leak detection.
+ */
+public class PoolSettings {
+
+    private final int        maxPoolSize;
+    private final int        minIdle;
+    private final long       connectionTimeout;
+    private final long       validationTimeout;
+    private final long       idleTimeout;
+    private final long       maxLifetime;
+    private final long       keepaliveTime;
+    private final long       leakDetectionThreshold;
+    private final Map<String, String> driverProperties;
+
+    public PoolSettings(int maxPoolSize, int minIdle, long connectionTimeout, long validationTimeout, long idleTimeout, long maxLifetime, long keepaliveTime, long leakDetectionThreshold, String driverProperties) {
+        this.maxPoolSize = maxPoolSize;
+        this.minIdle = minIdle;
+        this.connectionTimeout = connectionTimeout;
+        this.validationTimeout = validationTimeout;
+        this.idleTimeout = idleTimeout;
+        this.maxLifetime = maxLifetime;
+        this.keepaliveTime = keepaliveTime;
+        this.leakDetectionThreshold = leakDetectionThreshold;
+        this.driverProperties = parseDriverProperties(driverProperties);
+    }
+
+    /**
+     * Parses "name=value" pairs separated by semicolons or new lines, e.g. "ssl=true;loginTimeout=5".
+     */
+    static Map<String, String> parseDriverProperties(String value) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        if (StringUtils.isBlank(value)) {
+            return Collections.emptyMap();
+        }
+        for (String pair : value.split("[;\\r\\n]+")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                properties.put(pair.substring(0, separator).trim(), pair.substring(separator + 1).trim());
+            }
+        }
+        return Collections.unmodifiableMap(properties);
+    }
+
+    void applyTo(HikariConfig hikariConfig, RDBMS rdbms) {
+        hikariConfig.setMaximumPoolSize(maxPoolSize);
+        hikariConfig.setMinimumIdle(Math.min(minIdle, maxPoolSize));
+        hikariConfig.setConnectionTimeout(connectionTimeout);
+        hikariConfig.setValidationTimeout(validationTimeout);
+        hikariConfig.setIdleTimeout(idleTimeout);
+        hikariConfig.setMaxLifetime(maxLifetime);
+        hikariConfig.setKeepaliveTime(keepaliveTime);
+        hikariConfig.setLeakDetectionThreshold(leakDetectionThreshold);
+        rdbms.getDriverProperties().forEach(hikariConfig::addDataSourceProperty);
+        driverProperties.forEach(hikariConfig::addDataSourceProperty);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PoolSettings)) {
+            return false;
+        }
+        PoolSettings other = (PoolSettings) o;
+        return maxPoolSize == other.maxPoolSize && minIdle == other.minIdle && connectionTimeout == other.connectionTimeout
+               && validationTimeout == other.validationTimeout && idleTimeout == other.idleTimeout && maxLifetime == other.maxLifetime
+               && keepaliveTime == other.keepaliveTime && leakDetectionThreshold == other.leakDetectionThreshold
+               && driverProperties.equals(other.driverProperties);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxPoolSize, minIdle, connectionTimeout, validationTimeout, idleTimeout, maxLifetime, keepaliveTime, leakDetectionThreshold, driverProperties);
+    }
+}
@@ -0,0 +1,15 @@
+package br.com.cmabreu.dbuserprovider.persistence;
+
+/**
+ * What a query is for, which decides the connection pool it runs on.
+ */
+public enum QueryKind {
+    /**
+     * Single user and credential lookups on the login path; always served by the primary database.
+     */
+    LOOKUP,
+    /**
+     * Listings, searches and counts issued by the admin console; served by the read replica when one is configured.
+     */
+    LISTING
+}
@@ -9,26 +9,62 @@ import org.hibernate.dialect.SQLServer2012Dialect;
 import org.hibernate.dialect.DB2Dialect;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public enum RDBMS {
-    POSTGRESQL("PostgreSQL 10+", org.postgresql.Driver.class.getName(), "SELECT 1", new PostgreSQL10Dialect()),
-    MYSQL("MySQL 5.7+", com.mysql.cj.jdbc.Driver.class.getName(), "SELECT 1", new MySQL57Dialect()),
-    ORACLE("Oracle 12+", oracle.jdbc.OracleDriver.class.getName(), "SELECT 1 FROM DUAL", new Oracle12cDialect()),
-    IBMDB2("IBM DB2", com.ibm.db2.jcc.DB2Driver.class.getName(), "select * from sysibm.sysdummy1", new DB2Dialect()),
-    SQL_SERVER("MS SQL Server 2012+ (jtds)", net.sourceforge.jtds.jdbc.Driver.class.getName(), "SELECT 1", new SQLServer2012Dialect());
+    POSTGRESQL("PostgreSQL 10+", org.postgresql.Driver.class.getName(), "SELECT 1", new PostgreSQL10Dialect(), true,
+               "select reltuples::bigint from pg_class where oid = to_regclass(?)", false,
+               properties("prepareThreshold", "1",
+                          "preparedStatementCacheQueries", "256")),
+    MYSQL("MySQL 5.7+", com.mysql.cj.jdbc.Driver.class.getName(), "SELECT 1", new MySQL57Dialect(), false,
+          "select table_rows from information_schema.tables where table_schema = database() and table_name = ?", false,
+          properties("cachePrepStmts", "true",
+                     "prepStmtCacheSize", "250",
+                     "prepStmtCacheSqlLimit", "2048",
+                     "useServerPrepStmts", "true",
+                     "useLocalSessionState", "true",
+                     "cacheResultSetMetadata", "true",
+                     "maintainTimeStats", "false")),
+    ORACLE("Oracle 12+", oracle.jdbc.OracleDriver.class.getName(), "SELECT 1 FROM DUAL", new Oracle12cDialect(), false,
+           "select max(num_rows) from all_tables where table_name = upper(?) or owner || '.' || table_name = upper(?)", false,
+           properties("oracle.jdbc.implicitStatementCacheSize", "50")),
+    IBMDB2("IBM DB2", com.ibm.db2.jcc.DB2Driver.class.getName(), "select * from sysibm.sysdummy1", new DB2Dialect(), false,
+           "select max(card) from syscat.tables where tabname = upper(?) or trim(tabschema) || '.' || tabname = upper(?)", false,
+           properties()),
+    SQL_SERVER("MS SQL Server 2012+ (jtds)", net.sourceforge.jtds.jdbc.Driver.class.getName(), "SELECT 1", new SQLServer2012Dialect(), false,
+               "select sum(p.rows) from sys.partitions p where p.object_id = object_id(?) and p.index_id in (0, 1)", true,
+               properties("maxStatements", "500"));
 
     private final String  desc;
     private final String  driver;
     private final String  testString;
     private final Dialect dialect;
+    private final boolean cursorRequiresTransaction;
+    private final String  approximateCountQuery;
+    private final boolean testQueryRequired;
+    private final Map<String, String> driverProperties;
 
-    RDBMS(String desc, String driver, String testString, Dialect dialect) {
+    RDBMS(String desc, String driver, String testString, Dialect dialect, boolean cursorRequiresTransaction, String approximateCountQuery, boolean testQueryRequired, Map<String, String> driverProperties) {
         this.desc = desc;
         this.driver = driver;
         this.testString = testString;
         this.dialect = dialect;
+        this.cursorRequiresTransaction = cursorRequiresTransaction;
+        this.approximateCountQuery = approximateCountQuery;
+        this.testQueryRequired = testQueryRequired;
+        this.driverProperties = driverProperties;
+    }
+
+    private static Map<String, String> properties(String... namesAndValues) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            properties.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return Collections.unmodifiableMap(properties);
     }
 
     public static RDBMS getByDescription(String desc) {
@@ -60,5 +96,34 @@ public enum RDBMS {
         return testString;
     }
 
+    /**
+     * Whether the driver only honours the fetch size (i.e. streams through a server side cursor) outside auto-commit.
+     */
+    public boolean isCursorRequiresTransaction() {
+        return cursorRequiresTransaction;
+    }
+
+    /**
+     * Query reading the planner's row estimate for the table passed as parameter; negative or null when unknown.
+     */
+    public String getApproximateCountQuery() {
+        return approximateCountQuery;
+    }
+
+    /**
+     * Whether the driver lacks a working JDBC4 {@code Connection.isValid}, so the pool must validate connections
+     * with the test query instead.
+     */
+    public boolean isTestQueryRequired() {
+        return testQueryRequired;
+    }
+
+    /**
+     * Driver properties (mostly statement caching) set on every pool for this database, before the configured ones.
+     */
+    public Map<String, String> getDriverProperties() {
+        return driverProperties;
+    }
+
 
 }
@@ -0,0 +1,100 @@
+package br.com.cmabreu.dbuserprovider.persistence;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import br.com.cmabreu.dbuserprovider.DBUserStorageException;
+
+/**
+ * Walks an open {@link ResultSet} one row at a time. The result set, its statement and the pooled connection
+ * are released as soon as the rows are exhausted, a read fails or the owning stream is closed.
+ */
+class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> implements AutoCloseable {
+
+    interface RowReader<T> {
+        T read(ResultSet rs) throws SQLException;
+    }
+
+    private final Connection   connection;
+    private final Statement    statement;
+    private final ResultSet    resultSet;
+    private final RowReader<T> rowReader;
+    private final Runnable     onClose;
+    private       boolean      closed;
+    private static final Logger logger = LoggerFactory.getLogger( ResultSetSpliterator.class );
+
+    /**
+     * @param onClose run once, after the connection is released
+     */
+    ResultSetSpliterator(Connection connection, Statement statement, ResultSet resultSet, RowReader<T> rowReader, Runnable onClose) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+        this.connection = connection;
+        this.statement = statement;
+        this.resultSet = resultSet;
+        this.rowReader = rowReader;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (closed) {
+            return false;
+        }
+        try {
+            if (!resultSet.next()) {
+                close();
+                return false;
+            }
+            action.accept(rowReader.read(resultSet));
+            return true;
+        } catch (SQLException e) {
+            close();
+            throw new DBUserStorageException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeQuietly(resultSet, statement, connection);
+        onClose.run();
+    }
+
+    static void closeQuietly(ResultSet resultSet, Statement statement, Connection connection) {
+        try {
+            if (resultSet != null) {
+                resultSet.close();
+            }
+        } catch (SQLException e) {
+            logger.warn(e.getMessage());
+        }
+        try {
+            if (statement != null) {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            logger.warn(e.getMessage());
+        }
+        try {
+            if (connection != null) {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                }
+                connection.close();
+            }
+        } catch (SQLException e) {
+            logger.warn(e.getMessage());
+        }
+    }
+}
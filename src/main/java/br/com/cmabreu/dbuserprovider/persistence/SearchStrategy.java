@@ -0,0 +1,166 @@
+package br.com.cmabreu.dbuserprovider.persistence;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+import br.com.cmabreu.dbuserprovider.DBUserStorageException;
+
+/**
+ * How the term typed in the admin console search box is matched. Except for the configured query, every strategy
+ * generates the search query itself: the list all users query filtered on the search columns with a predicate the
+ * database can answer from an index of the matching kind, OR'ed over the columns where the predicate takes a single
+ * column. Each placeholder takes the same parameter, the term as rewritten by {@link #toParameter(String)}.
+ */
+public enum SearchStrategy {
+    CONFIGURED("Find user by search term query", null),
+    EXACT("Exact match", null),
+    PREFIX("Prefix match (lower case)", null),
+    POSTGRESQL_TRIGRAM("PostgreSQL trigram (pg_trgm)", RDBMS.POSTGRESQL),
+    POSTGRESQL_FULL_TEXT("PostgreSQL full text (tsvector)", RDBMS.POSTGRESQL),
+    MYSQL_FULL_TEXT("MySQL full text (MATCH AGAINST)", RDBMS.MYSQL),
+    ORACLE_TEXT("Oracle Text (CONTAINS)", RDBMS.ORACLE),
+    SQL_SERVER_FULL_TEXT("SQL Server full text (CONTAINS)", RDBMS.SQL_SERVER);
+
+    private static final String ALIAS  = "search_";
+    private static final char   ESCAPE = '!';
+
+    private final String desc;
+    // The only database the strategy runs on, null when it runs on all of them.
+    private final RDBMS  rdbms;
+
+    SearchStrategy(String desc, RDBMS rdbms) {
+        this.desc = desc;
+        this.rdbms = rdbms;
+    }
+
+    public static SearchStrategy getByDescription(String desc) {
+        for (SearchStrategy value : values()) {
+            if (value.desc.equals(desc)) {
+                return value;
+            }
+        }
+        return CONFIGURED;
+    }
+
+    public static List<String> getAllDescriptions() {
+        return Arrays.stream(values()).map(SearchStrategy::getDesc).collect(Collectors.toList());
+    }
+
+    public String getDesc() {
+        return desc;
+    }
+
+    /**
+     * @param listAll the configured list all users query, filtered by the generated one
+     * @param columns the column labels of the list all users query the term is searched on
+     * @return the generated search query, or null for the configured one
+     */
+    public String query(String listAll, List<String> columns, RDBMS rdbms) {
+        if (this == CONFIGURED) {
+            return null;
+        }
+        if (this.rdbms != null && this.rdbms != rdbms) {
+            throw new DBUserStorageException("Search strategy " + desc + " is not available on " + rdbms.getDesc(), null);
+        }
+        if (columns.isEmpty()) {
+            throw new DBUserStorageException("Search strategy " + desc + " needs at least one search column", null);
+        }
+        List<String> quoted = columns.stream()
+                                     .map(column -> ALIAS + "." + rdbms.getDialect().openQuote() + column + rdbms.getDialect().closeQuote())
+                                     .collect(Collectors.toList());
+        return String.format("select * from (%s) %s where %s", listAll, ALIAS, predicate(quoted));
+    }
+
+    private String predicate(List<String> columns) {
+        switch (this) {
+            case MYSQL_FULL_TEXT:
+                // a single MATCH over every column, which must be exactly the columns of one FULLTEXT index
+                return "match(" + String.join(", ", columns) + ") against (? in boolean mode)";
+            case SQL_SERVER_FULL_TEXT:
+                return "contains((" + String.join(", ", columns) + "), ?)";
+            default:
+                return columns.stream().map(this::columnPredicate).collect(Collectors.joining(" or ", "(", ")"));
+        }
+    }
+
+    private String columnPredicate(String column) {
+        switch (this) {
+            case PREFIX:
+                return "lower(" + column + ") like ? escape '" + ESCAPE + "'";
+            case POSTGRESQL_TRIGRAM:
+                return column + " ilike ? escape '" + ESCAPE + "'";
+            case POSTGRESQL_FULL_TEXT:
+                return "to_tsvector('simple', " + column + ") @@ to_tsquery('simple', ?)";
+            case ORACLE_TEXT:
+                return "contains(" + column + ", ?) > 0";
+            case EXACT:
+            default:
+                return column + " = ?";
+        }
+    }
+
+    /**
+     * Normalises the term as typed: trimmed and, for the generated queries, without the quotes and wildcards
+     * Keycloak users are used to type and with single spaces. Generated queries other than the exact match compare
+     * in lower case.
+     *
+     * @return the normalised term, empty when it asks for every user
+     */
+    public String normalize(String term) {
+        if (term == null) {
+            return "";
+        }
+        if (this == CONFIGURED) {
+            return term.trim();
+        }
+        String normalized = term.replaceAll("[*\"]", " ").trim().replaceAll("\\s+", " ");
+        return this == EXACT ? normalized : normalized.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param term a non empty {@link #normalize(String) normalised} term
+     * @return the query parameter searching for the term, or null when nothing searchable is left in it
+     */
+    public String toParameter(String term) {
+        switch (this) {
+            case PREFIX:
+                return escapeLike(term) + "%";
+            case POSTGRESQL_TRIGRAM:
+                return "%" + escapeLike(term) + "%";
+            case POSTGRESQL_FULL_TEXT:
+                return words(term, "", ":*", " & ");
+            case MYSQL_FULL_TEXT:
+                return words(term, "+", "*", " ");
+            case ORACLE_TEXT:
+                return words(term, "", "%", " and ");
+            case SQL_SERVER_FULL_TEXT:
+                return words(term, "\"", "*\"", " and ");
+            case EXACT:
+            case CONFIGURED:
+            default:
+                return term;
+        }
+    }
+
+    private static String escapeLike(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (char ch : value.toCharArray()) {
+            if (ch == ESCAPE || ch == '%' || ch == '_') {
+                escaped.append(ESCAPE);
+            }
+            escaped.append(ch);
+        }
+        return escaped.toString();
+    }
+
+    // Every word of the term as a required prefix, so operators and punctuation of the full text syntax never reach it.
+    private static String words(String term, String prefix, String suffix, String separator) {
+        String query = Arrays.stream(term.split("[^\\p{L}\\p{N}]+"))
+                             .filter(word -> !word.isEmpty())
+                             .map(word -> prefix + word + suffix)
+                             .collect(Collectors.joining(separator));
+        return query.isEmpty() ? null : query;
+    }
+}
@@ -0,0 +1,156 @@
+package br.com.cmabreu.dbuserprovider.persistence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Process wide registry of the connection pools, so components pointing at the same database with the same
+ * credentials and pool settings (typically one component per realm) share one pool instead of each opening its own.
+ * Pools are reference counted by component and handed back for closing once the last component releases them.
+ * A pool is created outside the registry lock, so a database slow to answer only holds up the components waiting
+ * for that very pool.
+ */
+final class SharedPools {
+
+    private static final Map<Key, Shared>              POOLS = new HashMap<>();
+    private static final Map<HikariDataSource, Shared> BY_DS = new IdentityHashMap<>();
+
+    private SharedPools() {
+    }
+
+    static HikariDataSource acquire(String url, String user, String password, RDBMS rdbms, PoolSettings poolSettings, boolean replica,
+                                    String component, Supplier<HikariDataSource> create) {
+        Key     key     = new Key(url, user, password, rdbms, poolSettings, replica);
+        Shared  shared;
+        boolean creator = false;
+        synchronized (SharedPools.class) {
+            shared = POOLS.get(key);
+            if (shared == null) {
+                // placeholder: components asking for the same pool meanwhile wait for this one to be created
+                shared = new Shared(key);
+                POOLS.put(key, shared);
+                creator = true;
+            }
+            shared.users.merge(component, 1, Integer::sum);
+        }
+        if (creator) {
+            create(shared, create);
+        }
+        try {
+            return shared.dataSource.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    private static void create(Shared shared, Supplier<HikariDataSource> create) {
+        HikariDataSource dataSource;
+        try {
+            dataSource = create.get();
+        } catch (RuntimeException e) {
+            synchronized (SharedPools.class) {
+                // every component waiting for the pool gets the error, the next one to ask tries again
+                POOLS.remove(shared.key, shared);
+            }
+            shared.dataSource.completeExceptionally(e);
+            return;
+        }
+        synchronized (SharedPools.class) {
+            BY_DS.put(dataSource, shared);
+        }
+        shared.dataSource.complete(dataSource);
+    }
+
+    /**
+     * @return true when no component uses the pool any more and the caller must close it
+     */
+    static synchronized boolean release(HikariDataSource dataSource, String component) {
+        Shared shared = BY_DS.get(dataSource);
+        if (shared == null) {
+            return true;
+        }
+        shared.users.computeIfPresent(component, (name, count) -> count > 1 ? count - 1 : null);
+        if (!shared.users.isEmpty()) {
+            return false;
+        }
+        POOLS.remove(shared.key, shared);
+        BY_DS.remove(dataSource);
+        return true;
+    }
+
+    /**
+     * @return true the first time it is called for the pool, telling the caller to warm it up for every component
+     */
+    static synchronized boolean claimWarmUp(HikariDataSource dataSource) {
+        Shared shared = BY_DS.get(dataSource);
+        if (shared == null || shared.warmedUp) {
+            return false;
+        }
+        shared.warmedUp = true;
+        return true;
+    }
+
+    /**
+     * @return the components currently using the pool
+     */
+    static synchronized List<String> users(HikariDataSource dataSource) {
+        Shared shared = dataSource == null ? null : BY_DS.get(dataSource);
+        return shared == null ? new ArrayList<>() : new ArrayList<>(shared.users.keySet());
+    }
+
+    private static final class Shared {
+        private final Key                                 key;
+        private final CompletableFuture<HikariDataSource> dataSource = new CompletableFuture<>();
+        private final Map<String, Integer>                users      = new HashMap<>();
+        private       boolean                             warmedUp;
+
+        private Shared(Key key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Key {
+        private final String       url;
+        private final String       user;
+        private final String       password;
+        private final RDBMS        rdbms;
+        private final PoolSettings poolSettings;
+        private final boolean      replica;
+
+        private Key(String url, String user, String password, RDBMS rdbms, PoolSettings poolSettings, boolean replica) {
+            this.url = url;
+            this.user = user;
+            this.password = password;
+            this.rdbms = rdbms;
+            this.poolSettings = poolSettings;
+            this.replica = replica;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return replica == other.replica && rdbms == other.rdbms && Objects.equals(url, other.url) && Objects.equals(user, other.user)
+                   && Objects.equals(password, other.password) && Objects.equals(poolSettings, other.poolSettings);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, user, rdbms, poolSettings, replica);
+        }
+    }
+}
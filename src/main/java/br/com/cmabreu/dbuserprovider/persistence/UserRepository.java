@@ -8,16 +8,16 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
-
-import javax.sql.DataSource;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.binary.StringUtils;
@@ -26,81 +26,167 @@ import org.apache.commons.lang3.NotImplementedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import at.favre.lib.crypto.bcrypt.BCrypt;
 import br.com.cmabreu.dbuserprovider.DBUserStorageException;
+import br.com.cmabreu.dbuserprovider.DBUserStorageUnavailableException;
+import br.com.cmabreu.dbuserprovider.cache.CountCache;
+import br.com.cmabreu.dbuserprovider.cache.CredentialCache;
+import br.com.cmabreu.dbuserprovider.cache.LoginKind;
+import br.com.cmabreu.dbuserprovider.cache.NegativeLookupFilter;
+import br.com.cmabreu.dbuserprovider.cache.SearchIndex;
+import br.com.cmabreu.dbuserprovider.cache.UserCache;
+import br.com.cmabreu.dbuserprovider.model.AttributeFilter;
+import br.com.cmabreu.dbuserprovider.model.ColumnHeader;
 import br.com.cmabreu.dbuserprovider.model.QueryConfigurations;
+import br.com.cmabreu.dbuserprovider.model.UserRow;
+import br.com.cmabreu.dbuserprovider.util.Bulkhead;
+import br.com.cmabreu.dbuserprovider.util.CircuitBreaker;
 import br.com.cmabreu.dbuserprovider.util.PBKDF2SHA256HashingUtil;
+import br.com.cmabreu.dbuserprovider.util.PasswordHashingExecutor;
+import br.com.cmabreu.dbuserprovider.util.QueryTemplate;
+import br.com.cmabreu.dbuserprovider.util.SqlParameter;
 import br.com.cmabreu.dbuserprovider.util.PagingUtil;
 import br.com.cmabreu.dbuserprovider.util.PagingUtil.Pageable;
 
 
 public class UserRepository {
     
+    /**
+     * Column label the login query must use for the password hash; it is never exposed as a user attribute.
+     */
+    public static final String LOGIN_HASH_COLUMN = "hash_pwd";
+    
     private Logger logger = LoggerFactory.getLogger( UserRepository.class );
 
     private DataSourceProvider  dataSourceProvider;
     private QueryConfigurations queryConfigurations;
+    private UserCache           userCache;
+    private CredentialCache     credentialCache;
+    private PasswordHashingExecutor hashingExecutor;
+    private CountCache          countCache;
+    private NegativeLookupFilter negativeLookupFilter;
+    private SearchIndex         searchIndex;
+    private CircuitBreaker      circuitBreaker;
+    private Map<QueryKind, Bulkhead> bulkheads;
+    // Last key of every page served in keyset mode, by first result of the page that follows it.
+    private final Cache<String, Object> keysetCursors = CacheBuilder.newBuilder()
+                                                                    .maximumSize(10_000)
+                                                                    .expireAfterAccess(10, TimeUnit.MINUTES)
+                                                                    .build();
+    // Concurrent identical lookups (e.g. a burst of logins for one account) share a single query.
+    private final SingleFlight<UserRow>             usersById        = new SingleFlight<>();
+    private final SingleFlight<Optional<UserRow>>   usersByUsername  = new SingleFlight<>();
+    private final SingleFlight<Optional<UserRow>>   usersByEmail     = new SingleFlight<>();
+    private final SingleFlight<Optional<LoginUser>> usersForLogin    = new SingleFlight<>();
+    private final SingleFlight<Optional<String>>    passwordHashes   = new SingleFlight<>();
     
-    public UserRepository(DataSourceProvider dataSourceProvider, QueryConfigurations queryConfigurations) {
+    public UserRepository(DataSourceProvider dataSourceProvider, QueryConfigurations queryConfigurations, UserCache userCache, CredentialCache credentialCache, PasswordHashingExecutor hashingExecutor, CountCache countCache, NegativeLookupFilter negativeLookupFilter, SearchIndex searchIndex, CircuitBreaker circuitBreaker, Map<QueryKind, Bulkhead> bulkheads) {
         this.dataSourceProvider  = dataSourceProvider;
         this.queryConfigurations = queryConfigurations;
+        this.userCache           = userCache;
+        this.credentialCache     = credentialCache;
+        this.hashingExecutor     = hashingExecutor;
+        this.countCache          = countCache;
+        this.negativeLookupFilter = negativeLookupFilter;
+        this.searchIndex         = searchIndex;
+        this.circuitBreaker      = circuitBreaker;
+        this.bulkheads           = bulkheads;
     }
     
     
-    private <T> T doQuery(String query, Pageable pageable, Function<ResultSet, T> resultTransformer, Object... params) {
+    private <T> T doQuery(QueryKind kind, QueryTemplate template, Pageable pageable, Function<ResultSet, T> resultTransformer, Object... params) {
+        String query = template.getSql(pageable);
         logger.info("Query: {"+query+"} params: {"+Arrays.toString(params)+"} ");
-        Optional<DataSource> dataSourceOpt = dataSourceProvider.getDataSource();
-        if (dataSourceOpt.isPresent()) {
-            DataSource dataSource = dataSourceOpt.get();
-            try (Connection c = dataSource.getConnection()) {
-                if (pageable != null) {
-                    query = PagingUtil.formatScriptWithPageable(query, pageable, queryConfigurations.getRDBMS());
-                }
+        Bulkhead bulkhead = bulkheads.get(kind);
+        if (!bulkhead.tryAcquire()) {
+            return null;
+        }
+        try {
+            if (!circuitBreaker.tryAcquire()) {
+                logger.warn("Circuit open, query not sent to the database");
+                return null;
+            }
+            long    started = System.nanoTime();
+            boolean success = false;
+            try (Connection c = dataSourceProvider.getConnection(kind)) {
                 try (PreparedStatement statement = c.prepareStatement(query)) {
-                    if (params != null) {
-
-                    	
-                    	// I've found a bug here: The user pass just one search param from interface and
-                    	// the query have more than one serach pattern in more than one attribute.
-                    	// Ex.: where foo=(?) or bar=(?)
-                    	// So we have more than one ? ( pattern ) and just one search parameter.
-                    	// The error was: No value specified for parameter 2.: org.postgresql.util.PSQLException: No value specified for parameter 2.
-                    	// So all I need to do is take this search param (just one = params[0]) and use it in every replace pattern ( ? ) in
-                    	// the query string.
-                    	long count = query.chars().filter(ch -> ch == '?').count(); 
-                        for (int i = 1; i <= count; i++) {
-                            statement.setObject(i, params[0] );
-                        }
-                        
-                        
-                    }
+                    template.bind(statement, pageable, params);
                     try (ResultSet rs = statement.executeQuery()) {
-                        return resultTransformer.apply(rs);
+                        T result = resultTransformer.apply(rs);
+                        success = true;
+                        return result;
                     }
                 }
             } catch (SQLException e) {
                 logger.error(e.getMessage(), e);
+            } finally {
+                circuitBreaker.record(success, System.nanoTime() - started);
             }
             return null;
+        } finally {
+            bulkhead.release();
         }
-        logger.error("No database connection is present");
-        return null;
     }
     
-    private List<Map<String, String>> readMap(ResultSet rs) {
+    /**
+     * Runs the query and returns its rows lazily through an open cursor, capped by the configured max results.
+     * The connection stays borrowed until the rows are exhausted or the stream is closed, so callers must close it.
+     */
+    private Stream<UserRow> streamQuery(QueryTemplate template, Object... params) {
+        return openCursor(template, queryConfigurations.getStreamMaxResults(), params);
+    }
+    
+    private Stream<UserRow> openCursor(QueryTemplate template, int maxResults, Object... params) {
+        Pageable          pageable  = maxResults > 0 ? new Pageable(0, maxResults) : null;
+        String            query     = template.getSql(pageable);
+        Connection        c         = null;
+        PreparedStatement statement = null;
+        ResultSet         rs        = null;
+        logger.info("Streaming query: {"+query+"} params: {"+Arrays.toString(params)+"} ");
+        // the slot is held until the cursor is exhausted or closed
+        Bulkhead bulkhead = bulkheads.get(QueryKind.LISTING);
+        if (!bulkhead.tryAcquire()) {
+            return Stream.empty();
+        }
+        if (!circuitBreaker.tryAcquire()) {
+            bulkhead.release();
+            logger.warn("Circuit open, query not sent to the database");
+            return Stream.empty();
+        }
+        long    started = System.nanoTime();
+        boolean success = false;
         try {
-            List<Map<String, String>> data         = new ArrayList<>();
-            Set<String>               columnsFound = new HashSet<>();
-            for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
-                String columnLabel = rs.getMetaData().getColumnLabel(i);
-                columnsFound.add(columnLabel);
+            c = dataSourceProvider.getConnection(QueryKind.LISTING);
+            if (queryConfigurations.getRDBMS().isCursorRequiresTransaction()) {
+                c.setAutoCommit(false);
             }
+            statement = c.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(queryConfigurations.getStreamFetchSize());
+            template.bind(statement, pageable, params);
+            rs = statement.executeQuery();
+            ColumnHeader header = ColumnHeader.of(rs.getMetaData());
+            ResultSetSpliterator<UserRow> rows = new ResultSetSpliterator<>(c, statement, rs, r -> UserRow.read(r, header), bulkhead::release);
+            success = true;
+            return StreamSupport.stream(rows, false).onClose(rows::close);
+        } catch (SQLException e) {
+            ResultSetSpliterator.closeQuietly(rs, statement, c);
+            bulkhead.release();
+            logger.error(e.getMessage(), e);
+            return Stream.empty();
+        } finally {
+            circuitBreaker.record(success, System.nanoTime() - started);
+        }
+    }
+    
+    private List<UserRow> readRows(ResultSet rs) {
+        try {
+            ColumnHeader  header = ColumnHeader.of(rs.getMetaData());
+            List<UserRow> data   = new ArrayList<>();
             while (rs.next()) {
-                Map<String, String> result = new HashMap<>();
-                for (String col : columnsFound) {
-                    result.put(col, rs.getString(col));
-                }
-                data.add(result);
+                data.add(UserRow.read(rs, header));
             }
             return data;
         } catch (Exception e) {
@@ -117,6 +203,18 @@ public class UserRepository {
         }
     }
     
+    private Integer readEstimate(ResultSet rs) {
+        try {
+            if (!rs.next()) {
+                return null;
+            }
+            long estimate = rs.getLong(1);
+            return rs.wasNull() ? null : (int) Math.min(estimate, Integer.MAX_VALUE);
+        } catch (Exception e) {
+            throw new DBUserStorageException(e.getMessage(), e);
+        }
+    }
+    
     private Boolean readBoolean(ResultSet rs) {
         try {
             return rs.next() ? rs.getBoolean(1) : null;
@@ -133,49 +231,396 @@ public class UserRepository {
         }
     }
     
-    public List<Map<String, String>> getAllUsers() {
-        return doQuery(queryConfigurations.getListAll(), null, this::readMap);
+    public List<UserRow> getAllUsers() {
+        return orEmpty(doQuery(QueryKind.LISTING, queryConfigurations.getListAllTemplate(), null, this::readRows));
     }
     
     public int getUsersCount(String search) {
+        String term = searchParameter(search);
+        if (term == null) {
+            return 0;
+        }
+        if (!term.isEmpty()) {
+            int indexed = searchIndex.count(search);
+            if (indexed >= 0) {
+                return indexed;
+            }
+        }
+        return countCache.get(term, this::countUsers);
+    }
+    
+    // The count, or null when the query failed or was refused, so it is not cached.
+    private Integer countUsers(String search) {
         if (search == null || search.isEmpty()) {
-            return Optional.ofNullable(doQuery(queryConfigurations.getCount(), null, this::readInt)).orElse(0);
+            if (queryConfigurations.getApproximateCountTemplate() != null) {
+                Integer estimate = doQuery(QueryKind.LISTING, queryConfigurations.getApproximateCountTemplate(), null, this::readEstimate, queryConfigurations.getApproximateCountTable());
+                if (estimate != null && estimate >= 0) {
+                    return estimate;
+                }
+                logger.debug("No planner statistics for {"+queryConfigurations.getApproximateCountTable()+"}, counting users");
+            }
+            return doQuery(QueryKind.LISTING, queryConfigurations.getCountTemplate(), null, this::readInt);
         } else {
-            String query = String.format("select count(*) from (%s) count", queryConfigurations.getFindBySearchTerm());
-            return Optional.ofNullable(doQuery(query, null, this::readInt, search)).orElse(0);
+            return doQuery(QueryKind.LISTING, queryConfigurations.getCountBySearchTermTemplate(), null, this::readInt, search);
         }
     }
     
     
-    public Map<String, String> findUserById(String id) {
-        return Optional.ofNullable(doQuery(queryConfigurations.getFindById(), null, this::readMap, Integer.valueOf(id) ) )
-                       .orElse(Collections.emptyList())
-                       .stream().findFirst().orElse(null);
+    public UserRow findUserById(String id) {
+        UserRow cached = userCache.getById(id);
+        if (cached != null) {
+            return cached;
+        }
+        SqlParameter idParameter;
+        try {
+            idParameter = queryConfigurations.toIdParameter(id);
+        } catch (IllegalArgumentException e) {
+            logger.debug("Id {"+id+"} is not of the configured id type: " + e.getMessage());
+            return null;
+        }
+        return usersById.execute(id, () -> {
+            List<UserRow> rows = doQuery(QueryKind.LOOKUP, queryConfigurations.getFindByIdTemplate(), null, this::readRows, idParameter);
+            if (rows == null) {
+                return userCache.getStaleById(id);
+            }
+            UserRow user = rows.stream().findFirst().orElse(null);
+            userCache.put(null, user);
+            return user;
+        });
+    }
+    
+    public Optional<UserRow> findUserByUsername(String username) {
+        UserRow cached = userCache.getByUsername(username);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        if (negativeLookupFilter.isDefinitelyUnknown(LoginKind.USERNAME, username)) {
+            return Optional.empty();
+        }
+        return usersByUsername.execute(username, () -> {
+            List<UserRow> rows = doQuery(QueryKind.LOOKUP, queryConfigurations.getFindByUsernameTemplate(), null, this::readRows, username);
+            if (rows == null) {
+                return Optional.ofNullable(userCache.getStaleByUsername(username));
+            }
+            Optional<UserRow> user = rows.stream().findFirst();
+            user.ifPresent(u -> userCache.put(username, u));
+            negativeLookupFilter.recordLookup(LoginKind.USERNAME, username, user.isPresent());
+            return user;
+        });
     }
     
-    public Optional<Map<String, String>> findUserByUsername(String username) {
-        return Optional.ofNullable(doQuery(queryConfigurations.getFindByUsername(), null, this::readMap, username))
-                       .orElse(Collections.emptyList())
-                       .stream().findFirst();
+    /**
+     * Point lookup through the find by email query, which must be configured.
+     */
+    public Optional<UserRow> findUserByEmail(String email) {
+        UserRow cached = userCache.getByEmail(email);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        if (negativeLookupFilter.isDefinitelyUnknown(LoginKind.EMAIL, email)) {
+            return Optional.empty();
+        }
+        return usersByEmail.execute(email, () -> {
+            List<UserRow> rows = doQuery(QueryKind.LOOKUP, queryConfigurations.getFindByEmailTemplate(), null, this::readRows, email);
+            if (rows == null) {
+                return Optional.ofNullable(userCache.getStaleByEmail(email));
+            }
+            Optional<UserRow> user = rows.stream().findFirst();
+            user.ifPresent(u -> userCache.putByEmail(email, u));
+            negativeLookupFilter.recordLookup(LoginKind.EMAIL, email, user.isPresent());
+            return user;
+        });
     }
     
-    public List<Map<String, String>> findUsers(String search, PagingUtil.Pageable pageable) {
-        if (search == null || search.isEmpty()) {
-            return doQuery(queryConfigurations.getListAll(), pageable, this::readMap);
+    /**
+     * Loads the user row and its password hash in a single round trip using the login query.
+     * A user served from the user cache comes back without a hash, which is then fetched on validation.
+     */
+    public Optional<LoginUser> findUserForLogin(String username) {
+        UserRow cached = userCache.getByUsername(username);
+        if (cached != null) {
+            return Optional.of(new LoginUser(cached, null));
+        }
+        if (negativeLookupFilter.isDefinitelyUnknown(LoginKind.USERNAME, username)) {
+            return Optional.empty();
+        }
+        return usersForLogin.execute(username, () -> {
+            List<UserRow> rows = doQuery(QueryKind.LOOKUP, queryConfigurations.getFindUserForLoginTemplate(), null, this::readRows, username);
+            if (rows == null) {
+                // the password cannot be checked without the database, but the user can still be shown
+                return Optional.ofNullable(userCache.getStaleByUsername(username)).map(stale -> new LoginUser(stale, null));
+            }
+            negativeLookupFilter.recordLookup(LoginKind.USERNAME, username, !rows.isEmpty());
+            return rows.stream().findFirst()
+                       .map(row -> {
+                           int position = row.getHeader().indexOfIgnoreCase(LOGIN_HASH_COLUMN);
+                           if (position < 0) {
+                               userCache.put(username, row);
+                               return new LoginUser(row, null);
+                           }
+                           UserRow user = row.without(row.getHeader().without(position), position);
+                           userCache.put(username, user);
+                           return new LoginUser(user, row.get(position));
+                       });
+        });
+    }
+    
+    public List<UserRow> findUsers(String search, PagingUtil.Pageable pageable) {
+        String term = searchParameter(search);
+        if (term == null) {
+            return Collections.emptyList();
+        }
+        if (!term.isEmpty()) {
+            List<UserRow> indexed = searchIndex.find(search, pageable == null ? 0 : pageable.getFirstResult(), pageable == null ? -1 : pageable.getMaxResults());
+            if (indexed != null) {
+                return indexed;
+            }
+        }
+        if (pageable != null && pageable.getMaxResults() > 0 && queryConfigurations.isKeysetPagination()) {
+            return findUsersByKeyset(term, pageable);
+        }
+        if (term.isEmpty()) {
+            return orEmpty(doQuery(QueryKind.LISTING, queryConfigurations.getListAllTemplate(), pageable, this::readRows));
+        }
+        return orEmpty(doQuery(QueryKind.LISTING, queryConfigurations.getFindBySearchTermTemplate(), pageable, this::readRows, term));
+    }
+    
+    // A listing refused by the bulkhead or the circuit breaker, or that failed, returns no user.
+    private static List<UserRow> orEmpty(List<UserRow> rows) {
+        return rows == null ? Collections.emptyList() : rows;
+    }
+    
+    /**
+     * Keyset (seek) pagination: when the page starting at firstResult follows a page this component already served,
+     * the query continues after the last key seen instead of skipping firstResult rows. Pages reached any other way
+     * (e.g. jumping ahead) use a regular offset over the same ordering, and record their own cursor.
+     */
+    private List<UserRow> findUsersByKeyset(String search, Pageable pageable) {
+        boolean   searching = search != null && !search.isEmpty();
+        Object    lastKey   = pageable.getFirstResult() > 0 ? keysetCursors.getIfPresent(keysetCursor(search, pageable.getFirstResult())) : null;
+        KeysetPage page;
+        if (lastKey != null) {
+            page = doQuery(QueryKind.LISTING, queryConfigurations.getKeysetAfterTemplate(searching), new Pageable(0, pageable.getMaxResults()), this::readKeysetPage, search, lastKey);
+        } else {
+            page = doQuery(QueryKind.LISTING, queryConfigurations.getKeysetTemplate(searching), pageable, this::readKeysetPage, search);
+        }
+        if (page == null) {
+            return Collections.emptyList();
+        }
+        if (page.lastKey != null) {
+            keysetCursors.put(keysetCursor(search, pageable.getFirstResult() + page.rows.size()), page.lastKey);
         }
-        return doQuery(queryConfigurations.getFindBySearchTerm(), pageable, this::readMap, search);
+        return page.rows;
     }
     
+    private static String keysetCursor(String search, int firstResult) {
+        return firstResult + "|" + (search == null ? "" : search);
+    }
+    
+    private KeysetPage readKeysetPage(ResultSet rs) {
+        try {
+            ColumnHeader header   = ColumnHeader.of(rs.getMetaData());
+            int          position = header.indexOf(queryConfigurations.getKeysetColumn());
+            if (position < 0) {
+                throw new DBUserStorageException("Keyset column " + queryConfigurations.getKeysetColumn() + " is not returned by the query", null);
+            }
+            KeysetPage page = new KeysetPage();
+            while (rs.next()) {
+                page.rows.add(UserRow.read(rs, header));
+                page.lastKey = rs.getObject(header.getColumnIndex(position));
+            }
+            return page;
+        } catch (SQLException e) {
+            throw new DBUserStorageException(e.getMessage(), e);
+        }
+    }
+    
+    private static class KeysetPage {
+        private final List<UserRow> rows = new ArrayList<>();
+        private       Object        lastKey;
+    }
+    
+    /**
+     * Unpaged counterpart of {@link #findUsers(String, Pageable)} that reads the rows through a cursor instead of
+     * loading them all in memory; the returned stream must be closed to release its connection.
+     */
+    public Stream<UserRow> streamUsers(String search) {
+        String term = searchParameter(search);
+        if (term == null) {
+            return Stream.empty();
+        }
+        if (term.isEmpty()) {
+            return streamQuery(queryConfigurations.getListAllTemplate());
+        }
+        int           maxResults = queryConfigurations.getStreamMaxResults();
+        List<UserRow> indexed    = searchIndex.find(search, 0, maxResults > 0 ? maxResults : -1);
+        if (indexed != null) {
+            return indexed.stream();
+        }
+        return streamQuery(queryConfigurations.getFindBySearchTermTemplate(), term);
+    }
+    
+    /**
+     * Users whose attributes match the given values, among the results of the search term when one is given, with
+     * the filter and the paging done in SQL.
+     *
+     * @return the page of matching users, empty when an attribute is not mapped to a column
+     */
+    public List<UserRow> findUsersByAttributes(String search, Map<String, String> attributes, boolean exact, Pageable pageable) {
+        search = searchParameter(search);
+        AttributeFilter filter = search == null ? null : attributeFilter(search, attributes, exact);
+        if (filter == null) {
+            return Collections.emptyList();
+        }
+        return orEmpty(doQuery(QueryKind.LISTING, filter.getListTemplate(), pageable, this::readRows, filter.parameters(search, attributes)));
+    }
+    
+    /**
+     * Unpaged counterpart of {@link #findUsersByAttributes}, read through a cursor; the returned stream must be
+     * closed to release its connection.
+     */
+    public Stream<UserRow> streamUsersByAttributes(String search, Map<String, String> attributes, boolean exact) {
+        search = searchParameter(search);
+        AttributeFilter filter = search == null ? null : attributeFilter(search, attributes, exact);
+        if (filter == null) {
+            return Stream.empty();
+        }
+        return streamQuery(filter.getListTemplate(), filter.parameters(search, attributes));
+    }
+    
+    public int getUsersCount(String search, Map<String, String> attributes, boolean exact) {
+        search = searchParameter(search);
+        AttributeFilter filter = search == null ? null : attributeFilter(search, attributes, exact);
+        if (filter == null) {
+            return 0;
+        }
+        return Optional.ofNullable(doQuery(QueryKind.LISTING, filter.getCountTemplate(), null, this::readInt, filter.parameters(search, attributes))).orElse(0);
+    }
+    
+    /**
+     * Normalises the search term with the configured strategy and rewrites it into the parameter of its query.
+     *
+     * @return the query parameter, empty to list every user, or null when the term is too short or has nothing
+     *         searchable left, so no user can match
+     */
+    private String searchParameter(String search) {
+        SearchStrategy strategy = queryConfigurations.getSearchStrategy();
+        String         term     = strategy.normalize(search);
+        if (term.isEmpty()) {
+            return term;
+        }
+        if (term.length() < queryConfigurations.getSearchMinLength()) {
+            logger.debug("Search term {"+term+"} is shorter than "+queryConfigurations.getSearchMinLength()+" characters, no users returned");
+            return null;
+        }
+        return strategy.toParameter(term);
+    }
+    
+    private AttributeFilter attributeFilter(String search, Map<String, String> attributes, boolean exact) {
+        AttributeFilter filter = queryConfigurations.getAttributeFilter(attributes.keySet(), exact, search != null && !search.isEmpty());
+        if (filter == null) {
+            logger.debug("Attributes {"+attributes.keySet()+"} cannot be searched in the database, no users returned");
+        }
+        return filter;
+    }
+    
+    /**
+     * Streams every user, without the unpaged search cap, to build the {@link NegativeLookupFilter} and the
+     * {@link SearchIndex}; the stream must be closed to release its connection.
+     */
+    public Stream<UserRow> streamAllUsers() {
+        return openCursor(queryConfigurations.getListAllTemplate(), 0);
+    }
+    
+    /**
+     * Waits for each pool of the component to hand out a connection, so the first logins find it open (the pool
+     * establishes its min idle connections by itself), and optionally has the database parse every configured query.
+     * A single connection is borrowed at a time, and only for the warm-up itself, so real traffic is never starved.
+     * A pool shared with other components is only opened once; the queries of each component are still parsed.
+     */
+    public void warmUp(boolean prepareQueries) {
+        Set<String> lookups  = new LinkedHashSet<>();
+        Set<String> listings = new LinkedHashSet<>();
+        if (prepareQueries) {
+            queryConfigurations.getLookupTemplates().forEach(template -> lookups.add(template.getSql()));
+            for (QueryTemplate template : queryConfigurations.getListingTemplates()) {
+                listings.add(template.getSql(null));
+                listings.add(template.getSql(new Pageable(0, 1)));
+                listings.add(template.getSql(new Pageable(1, 1)));
+            }
+        }
+        if (dataSourceProvider.hasReplica()) {
+            warmUp(QueryKind.LOOKUP, lookups);
+            warmUp(QueryKind.LISTING, listings);
+        } else {
+            // both kinds of query share the primary pool
+            lookups.addAll(listings);
+            warmUp(QueryKind.LOOKUP, lookups);
+        }
+    }
+    
+    private void warmUp(QueryKind kind, Set<String> statements) {
+        if (!dataSourceProvider.claimWarmUp(kind) && statements.isEmpty()) {
+            return;
+        }
+        try (Connection c = dataSourceProvider.getConnection(kind)) {
+            statements.forEach(sql -> prepare(c, sql));
+        } catch (SQLException e) {
+            logger.warn("Could not warm up the "+kind+" pool: " + e.getMessage());
+        }
+    }
+    
+    private void prepare(Connection c, String sql) {
+        // describing the statement makes most drivers send it to the database for parsing
+        try (PreparedStatement statement = c.prepareStatement(sql)) {
+            statement.getMetaData();
+        } catch (SQLException e) {
+            logger.debug("Could not prepare {"+sql+"}: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * @throws DBUserStorageUnavailableException when the hash query is refused or fails, which says nothing about
+     *                                           the password
+     */
     public boolean validateCredentials(String username, String password) {
     	logger.info("Validating credentials for {"+username+"}");
-        String hash = Optional.ofNullable(doQuery(queryConfigurations.getFindPasswordHash(), null, this::readString, username)).orElse("");
+        Optional<String> hash = passwordHashes.execute(username, () -> doQuery(QueryKind.LOOKUP, queryConfigurations.getFindPasswordHashTemplate(), null, rs -> Optional.ofNullable(readString(rs)), username));
+        if (hash == null) {
+            throw new DBUserStorageUnavailableException("Could not read the password hash of {" + username + "}", null);
+        }
+        return hash.isPresent() && validateCredentials(username, password, hash.get());
+    }
+    
+    /**
+     * Validates against a hash the caller already loaded, e.g. through the login query.
+     */
+    public boolean validateCredentials(String username, String password, String hash) {
+        if (hash == null || hash.isEmpty()) {
+            return false;
+        }
+        if (credentialCache.isVerified(username, hash, password)) {
+            return true;
+        }
+        boolean verified = hashingExecutor.verify(() -> verifyPassword(password, hash));
+        if (verified) {
+            credentialCache.putVerified(username, hash, password);
+        }
+        return verified;
+    }
+    
+    private boolean verifyPassword(String password, String hash) {
         if (queryConfigurations.isBlowfish()) {
-            return !hash.isEmpty() && BCrypt.verifyer().verify(password.toCharArray(), hash).verified;
+            return BCrypt.verifyer().verify(password.toCharArray(), hash).verified;
         } else {
             String hashFunction = queryConfigurations.getHashFunction();
 
             if(hashFunction.equals("PBKDF2-SHA256")){
                 String[] components = hash.split("\\$");
+                if (components.length < 4) {
+                    logger.warn("Password hash is not in the PBKDF2-SHA256 format");
+                    return false;
+                }
                 return new PBKDF2SHA256HashingUtil(password, components[2], Integer.valueOf(components[1])).validatePassword(components[3]);
             }
 
@@ -192,4 +637,22 @@ public class UserRepository {
     public boolean removeUser() {
         return queryConfigurations.getAllowKeycloakDelete();
     }
+    
+    public static class LoginUser {
+        private final UserRow user;
+        private final String  passwordHash;
+        
+        LoginUser(UserRow user, String passwordHash) {
+            this.user = user;
+            this.passwordHash = passwordHash;
+        }
+        
+        public UserRow getUser() {
+            return user;
+        }
+        
+        public String getPasswordHash() {
+            return passwordHash;
+        }
+    }
 }
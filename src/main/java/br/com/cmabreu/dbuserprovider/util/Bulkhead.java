@@ -0,0 +1,130 @@
+package br.com.cmabreu.dbuserprovider.util;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caps the number of connections one kind of traffic can hold at once, so for instance an admin paging through
+ * every user cannot starve logins of connections. Callers beyond the limit wait, at most {@code maxWaitingCalls}
+ * of them and for at most {@code maxWaitMillis}; the others are refused. A limit of zero (or less) disables it.
+ */
+public class Bulkhead implements BulkheadMBean {
+
+    private static final double NANOS_PER_MILLI = 1_000_000d;
+
+    private final String        name;
+    private final int           maxConcurrentCalls;
+    private final int           maxWaitingCalls;
+    private final long          maxWaitMillis;
+    private final Semaphore     permits;
+    private final AtomicInteger waiting       = new AtomicInteger();
+    private final LongAdder     acquiredCount = new LongAdder();
+    private final LongAdder     rejectedCount = new LongAdder();
+    private final LongAdder     timedOutCount = new LongAdder();
+    private final LongAdder     waitNanos     = new LongAdder();
+    private final AtomicLong    maxWaitNanos  = new AtomicLong();
+    private Logger logger = LoggerFactory.getLogger( Bulkhead.class );
+
+    public Bulkhead(String name, int maxConcurrentCalls, int maxWaitingCalls, long maxWaitMillis) {
+        this.name = name;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.maxWaitingCalls = Math.max(0, maxWaitingCalls);
+        this.maxWaitMillis = maxWaitMillis;
+        this.permits = maxConcurrentCalls > 0 ? new Semaphore(maxConcurrentCalls, true) : null;
+    }
+
+    /**
+     * @return whether the call may proceed; every permitted call must be followed by {@link #release()}
+     */
+    public boolean tryAcquire() {
+        if (permits == null) {
+            return true;
+        }
+        if (permits.tryAcquire()) {
+            acquiredCount.increment();
+            return true;
+        }
+        if (waiting.incrementAndGet() > maxWaitingCalls) {
+            waiting.decrementAndGet();
+            rejectedCount.increment();
+            logger.warn("{"+name+"} bulkhead full: {"+maxConcurrentCalls+"} calls running and {"+maxWaitingCalls+"} waiting");
+            return false;
+        }
+        long started = System.nanoTime();
+        try {
+            if (permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                long waited = System.nanoTime() - started;
+                waitNanos.add(waited);
+                maxWaitNanos.accumulateAndGet(waited, Math::max);
+                acquiredCount.increment();
+                return true;
+            }
+            timedOutCount.increment();
+            logger.warn("{"+name+"} bulkhead: no slot freed within {"+maxWaitMillis+"} ms");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    public void release() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    @Override
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    @Override
+    public int getActiveCount() {
+        return permits == null ? 0 : maxConcurrentCalls - permits.availablePermits();
+    }
+
+    @Override
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    @Override
+    public int getMaxWaitingCalls() {
+        return maxWaitingCalls;
+    }
+
+    @Override
+    public long getAcquiredCount() {
+        return acquiredCount.sum();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    @Override
+    public long getTimedOutCount() {
+        return timedOutCount.sum();
+    }
+
+    @Override
+    public double getAverageWaitMillis() {
+        long acquired = acquiredCount.sum();
+        return acquired == 0 ? 0 : waitNanos.sum() / NANOS_PER_MILLI / acquired;
+    }
+
+    @Override
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / NANOS_PER_MILLI;
+    }
+}
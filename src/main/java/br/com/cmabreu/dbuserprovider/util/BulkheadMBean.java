@@ -0,0 +1,22 @@
+package br.com.cmabreu.dbuserprovider.util;
+
+public interface BulkheadMBean {
+
+    int getMaxConcurrentCalls();
+
+    int getActiveCount();
+
+    int getWaitingCount();
+
+    int getMaxWaitingCalls();
+
+    long getAcquiredCount();
+
+    long getRejectedCount();
+
+    long getTimedOutCount();
+
+    double getAverageWaitMillis();
+
+    double getMaxWaitMillis();
+}
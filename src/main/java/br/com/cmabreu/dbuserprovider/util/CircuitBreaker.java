@@ -0,0 +1,168 @@
+package br.com.cmabreu.dbuserprovider.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Count based circuit breaker guarding the external database. Over the last {@code windowSize} calls, once the
+ * share of failed or slow calls reaches the threshold the circuit opens and calls are refused right away for the
+ * open duration. It then lets a few probe calls through (half-open): the circuit closes if they all succeed and
+ * opens again otherwise. A failure rate threshold of zero (or less) disables the breaker.
+ */
+public class CircuitBreaker implements CircuitBreakerMBean {
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final double    failureRateThreshold;
+    private final long      slowCallNanos;
+    private final boolean[] window;
+    private final long      openMillis;
+    private final int       halfOpenCalls;
+    private       State     state = State.CLOSED;
+    private       int       windowPosition;
+    private       int       windowCount;
+    private       int       windowFailures;
+    private       long      openedAt;
+    private       int       probesStarted;
+    private       int       probesSucceeded;
+    private final LongAdder failureCount  = new LongAdder();
+    private final LongAdder slowCallCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder openedCount   = new LongAdder();
+    private Logger logger = LoggerFactory.getLogger( CircuitBreaker.class );
+
+    /**
+     * @param failureRateThreshold percentage (1-100) of failed or slow calls opening the circuit
+     * @param slowCallMillis       duration above which a successful call counts as failed; zero ignores latency
+     * @param windowSize           number of recent calls the rate is computed on
+     * @param openSeconds          time calls are refused before probing
+     * @param halfOpenCalls        probe calls let through before deciding to close
+     */
+    public CircuitBreaker(double failureRateThreshold, long slowCallMillis, int windowSize, long openSeconds, int halfOpenCalls) {
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallNanos = slowCallMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(slowCallMillis) : Long.MAX_VALUE;
+        this.window = new boolean[Math.max(1, windowSize)];
+        this.openMillis = TimeUnit.SECONDS.toMillis(openSeconds);
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+    }
+
+    public boolean isEnabled() {
+        return failureRateThreshold > 0;
+    }
+
+    /**
+     * @return whether the call may go to the database; every permitted call must be followed by {@link #record}
+     */
+    public synchronized boolean tryAcquire() {
+        if (!isEnabled()) {
+            return true;
+        }
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                rejectedCount.increment();
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probesStarted = 0;
+            probesSucceeded = 0;
+            logger.info("Circuit half-open, probing the database");
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesStarted >= halfOpenCalls) {
+                rejectedCount.increment();
+                return false;
+            }
+            probesStarted++;
+        }
+        return true;
+    }
+
+    public synchronized void record(boolean success, long elapsedNanos) {
+        if (!isEnabled()) {
+            return;
+        }
+        boolean slow   = success && elapsedNanos > slowCallNanos;
+        boolean failed = !success || slow;
+        if (!success) {
+            failureCount.increment();
+        } else if (slow) {
+            slowCallCount.increment();
+        }
+        if (state == State.HALF_OPEN) {
+            if (failed) {
+                open();
+            } else if (++probesSucceeded >= halfOpenCalls) {
+                close();
+                logger.info("Circuit closed, the database is responding again");
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // a call started before the circuit opened
+            return;
+        }
+        if (windowCount == window.length) {
+            windowFailures -= window[windowPosition] ? 1 : 0;
+        } else {
+            windowCount++;
+        }
+        window[windowPosition] = failed;
+        windowFailures += failed ? 1 : 0;
+        windowPosition = (windowPosition + 1) % window.length;
+        if (windowCount == window.length && windowFailures * 100d / windowCount >= failureRateThreshold) {
+            open();
+            logger.warn("Circuit opened: {"+windowFailures+"} of the last {"+windowCount+"} database calls failed or were slow");
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        openedCount.increment();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        windowPosition = 0;
+        windowCount = 0;
+        windowFailures = 0;
+    }
+
+    @Override
+    public synchronized String getState() {
+        return isEnabled() ? state.name() : "DISABLED";
+    }
+
+    @Override
+    public synchronized double getFailureRate() {
+        return windowCount == 0 ? 0 : windowFailures * 100d / windowCount;
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    @Override
+    public long getSlowCallCount() {
+        return slowCallCount.sum();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    @Override
+    public long getOpenedCount() {
+        return openedCount.sum();
+    }
+
+    @Override
+    public synchronized void reset() {
+        close();
+    }
+}
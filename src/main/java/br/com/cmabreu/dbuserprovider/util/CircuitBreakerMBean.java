@@ -0,0 +1,18 @@
+package br.com.cmabreu.dbuserprovider.util;
+
+public interface CircuitBreakerMBean {
+
+    String getState();
+
+    double getFailureRate();
+
+    long getFailureCount();
+
+    long getSlowCallCount();
+
+    long getRejectedCount();
+
+    long getOpenedCount();
+
+    void reset();
+}
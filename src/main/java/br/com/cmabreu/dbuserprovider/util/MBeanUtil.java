@@ -0,0 +1,50 @@
+package br.com.cmabreu.dbuserprovider.util;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes per-component statistics (caches, pools, executors) as JMX MBeans under
+ * the {@code br.com.cmabreu.dbuserprovider} domain, one entry per component and type.
+ */
+public class MBeanUtil {
+
+    private static final String DOMAIN = "br.com.cmabreu.dbuserprovider";
+    private static final Logger logger = LoggerFactory.getLogger( MBeanUtil.class );
+
+    private MBeanUtil() {
+    }
+
+    public static void register(String componentId, String type, Object mbean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName  name   = objectName(componentId, type);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+        } catch (Exception e) {
+            logger.warn("Could not register MBean type={"+type+"} component={"+componentId+"}: "+e.getMessage());
+        }
+    }
+
+    public static void unregisterAll(String componentId) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":component=" + ObjectName.quote(componentId) + ",*"), null)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            logger.warn("Could not unregister MBeans of component={"+componentId+"}: "+e.getMessage());
+        }
+    }
+
+    private static ObjectName objectName(String componentId, String type) throws Exception {
+        return new ObjectName(DOMAIN + ":type=" + type + ",component=" + ObjectName.quote(componentId));
+    }
+}
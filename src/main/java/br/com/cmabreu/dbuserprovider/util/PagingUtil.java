@@ -25,16 +25,21 @@ public class PagingUtil {
             this.firstResult = firstResult;
             this.maxResults = maxResults;
         }
+
+        public int getFirstResult() {
+            return firstResult;
+        }
+
+        public int getMaxResults() {
+            return maxResults;
+        }
     }
 
     public static String formatScriptWithPageable(String query, Pageable pageable, RDBMS RDBMS) {
 
         final Dialect dialect = RDBMS.getDialect();
 
-        RowSelection rowSelection = new RowSelection();
-        rowSelection.setFetchSize(pageable.maxResults);
-        rowSelection.setFirstRow(pageable.firstResult);
-        rowSelection.setMaxRows(pageable.maxResults);
+        RowSelection rowSelection = rowSelection(pageable.firstResult, pageable.maxResults);
 
         String escapedSQL = escapeQuestionMarks(query);
 
@@ -42,12 +47,7 @@ public class PagingUtil {
         try {
             LimitHandler limitHandler = dialect.getLimitHandler();
             processedSQL = new StringBuilder(limitHandler.processSql(escapedSQL, rowSelection));
-            int                                 col       = 1;
-            PreparedStatementParameterCollector collector = new PreparedStatementParameterCollector();
-            col += limitHandler.bindLimitParametersAtStartOfQuery(rowSelection, collector, col);
-            limitHandler.bindLimitParametersAtEndOfQuery(rowSelection, collector, col);
-
-            Map<Integer, Object> parameters = collector.getParameters();
+            Map<Integer, Object> parameters = collectLimitParameters(limitHandler, rowSelection);
             for (int i = 1; i <= parameters.keySet().size(); i++) {
                 Matcher matcher = SINGLE_QUESTION_MARK_REGEX.matcher(processedSQL);
                 if (matcher.find()) {
@@ -62,6 +62,38 @@ public class PagingUtil {
         }
     }
 
+    /**
+     * Runs the dialect's {@link LimitHandler} over the query with user placeholders escaped, returning the
+     * processed SQL (limit placeholders are the single '?') together with the values it binds to them, in order.
+     */
+    static String processSql(String query, int firstResult, int maxResults, RDBMS RDBMS, Map<Integer, Object> limitParameters) {
+        RowSelection rowSelection = rowSelection(firstResult, maxResults);
+        try {
+            LimitHandler limitHandler = RDBMS.getDialect().getLimitHandler();
+            String       processed    = limitHandler.processSql(escapeQuestionMarks(query), rowSelection);
+            limitParameters.putAll(collectLimitParameters(limitHandler, rowSelection));
+            return processed;
+        } catch (SQLException e) {
+            throw new DBUserStorageException(e.getMessage(), e);
+        }
+    }
+
+    private static RowSelection rowSelection(int firstResult, int maxResults) {
+        RowSelection rowSelection = new RowSelection();
+        rowSelection.setFetchSize(maxResults);
+        rowSelection.setFirstRow(firstResult);
+        rowSelection.setMaxRows(maxResults);
+        return rowSelection;
+    }
+
+    private static Map<Integer, Object> collectLimitParameters(LimitHandler limitHandler, RowSelection rowSelection) throws SQLException {
+        int                                 col       = 1;
+        PreparedStatementParameterCollector collector = new PreparedStatementParameterCollector();
+        col += limitHandler.bindLimitParametersAtStartOfQuery(rowSelection, collector, col);
+        limitHandler.bindLimitParametersAtEndOfQuery(rowSelection, collector, col);
+        return collector.getParameters();
+    }
+
 
     private static String unescapeQuestionMarks(String sql) {
         return sql.replaceAll("\\?\\?", "?");
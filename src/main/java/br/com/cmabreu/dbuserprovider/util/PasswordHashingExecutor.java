@@ -0,0 +1,192 @@
+package br.com.cmabreu.dbuserprovider.util;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import br.com.cmabreu.dbuserprovider.DBUserStorageException;
+import br.com.cmabreu.dbuserprovider.DBUserStorageUnavailableException;
+
+/**
+ * Bounded worker pool for bcrypt/PBKDF2 verification, so a burst of logins cannot take every core away from
+ * the Keycloak request threads. Verifications beyond the queue capacity are rejected right away and a
+ * verification not finished within the deadline (queue wait included) is abandoned; both throw a
+ * {@link DBUserStorageUnavailableException}, so the login fails as unavailable rather than as a wrong password.
+ * With zero threads the verification runs on the calling thread, as before.
+ * <p>
+ * Abandoning only stops waiting: a verification still queued is dropped, but bcrypt and PBKDF2 ignore interrupts,
+ * so one already running keeps its worker until it completes. The number of threads bounds how many of them can
+ * pile up, and further logins are rejected by the queue meanwhile.
+ */
+public class PasswordHashingExecutor implements PasswordHashingExecutorMBean, Closeable {
+
+    private static final double NANOS_PER_MILLI = 1_000_000d;
+
+    private final ThreadPoolExecutor executor;
+    private final int                queueCapacity;
+    private final long               timeoutMillis;
+    private final LongAdder          verificationCount    = new LongAdder();
+    private final LongAdder          rejectedCount        = new LongAdder();
+    private final LongAdder          timedOutCount        = new LongAdder();
+    private final LongAdder          queueWaitNanos       = new LongAdder();
+    private final LongAdder          verificationNanos    = new LongAdder();
+    private final AtomicLong         maxQueueWaitNanos    = new AtomicLong();
+    private final AtomicLong         maxVerificationNanos = new AtomicLong();
+    private Logger logger = LoggerFactory.getLogger( PasswordHashingExecutor.class );
+
+    public PasswordHashingExecutor(String name, int threads, int queueCapacity, long timeoutMillis) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.timeoutMillis = timeoutMillis;
+        if (threads > 0) {
+            this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                                   new ArrayBlockingQueue<>(this.queueCapacity),
+                                                   daemonThreadFactory("cmabreu-hashing-" + name + "-"),
+                                                   new ThreadPoolExecutor.AbortPolicy());
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * @throws DBUserStorageUnavailableException when the verification is rejected, times out or is interrupted
+     */
+    public boolean verify(BooleanSupplier verification) {
+        if (executor == null || executor.isShutdown()) {
+            return timed(verification);
+        }
+        long            enqueued = System.nanoTime();
+        Future<Boolean> future;
+        try {
+            future = executor.submit(() -> {
+                record(System.nanoTime() - enqueued, queueWaitNanos, maxQueueWaitNanos);
+                return timed(verification);
+            });
+        } catch (RejectedExecutionException e) {
+            if (executor.isShutdown()) {
+                return timed(verification);
+            }
+            rejectedCount.increment();
+            logger.warn("Password verification rejected: hashing queue is full ({"+queueCapacity+"} pending)");
+            throw new DBUserStorageUnavailableException("Password verification rejected: hashing queue is full", e);
+        }
+        try {
+            long deadline = timeoutMillis > 0 ? timeoutMillis : Long.MAX_VALUE;
+            return future.get(deadline, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timedOutCount.increment();
+            logger.warn("Password verification abandoned after {"+timeoutMillis+"} ms");
+            throw new DBUserStorageUnavailableException("Password verification abandoned after " + timeoutMillis + " ms", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new DBUserStorageUnavailableException("Password verification interrupted", e);
+        } catch (ExecutionException e) {
+            throw new DBUserStorageException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private boolean timed(BooleanSupplier verification) {
+        long start = System.nanoTime();
+        try {
+            return verification.getAsBoolean();
+        } finally {
+            verificationCount.increment();
+            record(System.nanoTime() - start, verificationNanos, maxVerificationNanos);
+        }
+    }
+
+    private static void record(long nanos, LongAdder total, AtomicLong max) {
+        total.add(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    private static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @Override
+    public int getPoolSize() {
+        return executor == null ? 0 : executor.getPoolSize();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return executor == null ? 0 : executor.getActiveCount();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return executor == null ? 0 : queueCapacity;
+    }
+
+    @Override
+    public long getVerificationCount() {
+        return verificationCount.sum();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    @Override
+    public long getTimedOutCount() {
+        return timedOutCount.sum();
+    }
+
+    @Override
+    public double getAverageQueueWaitMillis() {
+        long count = verificationCount.sum();
+        return executor == null || count == 0 ? 0 : queueWaitNanos.sum() / NANOS_PER_MILLI / count;
+    }
+
+    @Override
+    public double getMaxQueueWaitMillis() {
+        return maxQueueWaitNanos.get() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getAverageVerificationMillis() {
+        long count = verificationCount.sum();
+        return count == 0 ? 0 : verificationNanos.sum() / NANOS_PER_MILLI / count;
+    }
+
+    @Override
+    public double getMaxVerificationMillis() {
+        return maxVerificationNanos.get() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Stops accepting work but lets queued verifications finish; callers arriving afterwards verify inline.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package br.com.cmabreu.dbuserprovider.util;
+
+public interface PasswordHashingExecutorMBean {
+
+    int getPoolSize();
+
+    int getActiveCount();
+
+    int getQueueDepth();
+
+    int getQueueCapacity();
+
+    long getVerificationCount();
+
+    long getRejectedCount();
+
+    long getTimedOutCount();
+
+    double getAverageQueueWaitMillis();
+
+    double getMaxQueueWaitMillis();
+
+    double getAverageVerificationMillis();
+
+    double getMaxVerificationMillis();
+}
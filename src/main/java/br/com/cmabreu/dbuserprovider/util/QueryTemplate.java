@@ -0,0 +1,237 @@
+package br.com.cmabreu.dbuserprovider.util;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import br.com.cmabreu.dbuserprovider.DBUserStorageException;
+import br.com.cmabreu.dbuserprovider.persistence.RDBMS;
+import br.com.cmabreu.dbuserprovider.util.PagingUtil.Pageable;
+
+/**
+ * A configured query parsed once at configuration time: its placeholder count and the dialect specific paged
+ * variants with their bind slots, so executing it only needs binding.
+ * <p>
+ * Paged variants are obtained by running the dialect's limit handler with probe values and classifying every
+ * value it binds as first row, max rows or their sum. Offset and limit stay as JDBC parameters, so every page
+ * shares one statement text and therefore one cached plan. Dialects whose limit handler writes the values into
+ * the SQL text itself (e.g. IBM DB2) are not templated and keep being processed on each call.
+ */
+public class QueryTemplate {
+
+    private static final int PROBE_FIRST  = 1_000_000;
+    private static final int PROBE_MAX    = 1_000;
+    private static final int MAX_ADJUST   = 2;
+
+    private final String   query;
+    private final RDBMS    rdbms;
+    private final int      parameterCount;
+    // Which query parameter each placeholder takes, in statement order.
+    private final int[]    parameterIndexes;
+    private final PagedSql firstPage;
+    private final PagedSql offsetPage;
+
+    private QueryTemplate(String query, RDBMS rdbms, int[] parameterIndexes) {
+        this.query = query;
+        this.rdbms = rdbms;
+        this.parameterCount = (int) query.chars().filter(ch -> ch == '?').count();
+        if (parameterIndexes.length != parameterCount) {
+            throw new DBUserStorageException("Expected " + parameterIndexes.length + " placeholders but found " + parameterCount + " in " + query, null);
+        }
+        this.parameterIndexes = parameterIndexes;
+        this.firstPage = PagedSql.compile(query, rdbms, 0);
+        this.offsetPage = PagedSql.compile(query, rdbms, PROBE_FIRST);
+    }
+
+    /**
+     * Compiles a configured query, where every placeholder takes the single query parameter.
+     *
+     * @return the compiled template, or null when no query is configured
+     */
+    public static QueryTemplate compile(String query, RDBMS rdbms) {
+        if (query == null || query.trim().isEmpty()) {
+            return null;
+        }
+        return new QueryTemplate(query, rdbms, new int[(int) query.chars().filter(ch -> ch == '?').count()]);
+    }
+
+    /**
+     * Compiles a generated query whose placeholders take distinct query parameters.
+     *
+     * @param parameterIndexes for each placeholder, in statement order, the position of its query parameter
+     */
+    public static QueryTemplate compile(String query, RDBMS rdbms, int... parameterIndexes) {
+        return new QueryTemplate(query, rdbms, parameterIndexes);
+    }
+
+    /**
+     * Placeholder indexes for a query built around a configured one: every placeholder of the configured query
+     * takes parameter 0 and the extra ones that follow it take parameters 1, 2, ...
+     */
+    public static int[] wrapParameterIndexes(QueryTemplate inner, int extraParameters) {
+        int[] indexes = new int[inner.parameterCount + extraParameters];
+        for (int i = 0; i < extraParameters; i++) {
+            indexes[inner.parameterCount + i] = i + 1;
+        }
+        return indexes;
+    }
+
+    public String getSql() {
+        return query;
+    }
+
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    public String getSql(Pageable pageable) {
+        if (!isPaged(pageable)) {
+            return query;
+        }
+        PagedSql paged = pagedSql(pageable);
+        if (paged == null) {
+            return PagingUtil.formatScriptWithPageable(query, pageable, rdbms);
+        }
+        return paged.sql;
+    }
+
+    /**
+     * Binds the statement prepared from {@link #getSql(Pageable)}: user placeholders get the query parameter,
+     * limit slots get the values derived from the pageable.
+     */
+    public void bind(PreparedStatement statement, Pageable pageable, Object... params) throws SQLException {
+        PagedSql paged = isPaged(pageable) ? pagedSql(pageable) : null;
+        if (paged == null) {
+            for (int i = 0; i < parameterCount; i++) {
+                bindParameter(statement, i + 1, parameterIndexes[i], params);
+            }
+            return;
+        }
+        int parameter = 0;
+        for (int i = 0; i < paged.slots.length; i++) {
+            LimitSlot slot = paged.slots[i];
+            if (slot == null) {
+                bindParameter(statement, i + 1, parameterIndexes[parameter++], params);
+            } else {
+                statement.setLong(i + 1, slot.value(pageable.getFirstResult(), pageable.getMaxResults()));
+            }
+        }
+    }
+
+    // I've found a bug here: The user pass just one search param from interface and
+    // the query have more than one serach pattern in more than one attribute.
+    // Ex.: where foo=(?) or bar=(?)
+    // So we have more than one ? ( pattern ) and just one search parameter.
+    // The error was: No value specified for parameter 2.: org.postgresql.util.PSQLException: No value specified for parameter 2.
+    // So all I need to do is take this search param (just one = params[0]) and use it in every replace pattern ( ? ) in
+    // the query string.
+    private static void bindParameter(PreparedStatement statement, int index, int parameterIndex, Object... params) throws SQLException {
+        if (params != null && params.length > parameterIndex) {
+            if (params[parameterIndex] instanceof SqlParameter) {
+                SqlParameter typed = (SqlParameter) params[parameterIndex];
+                statement.setObject(index, typed.getValue(), typed.getSqlType());
+            } else {
+                statement.setObject(index, params[parameterIndex]);
+            }
+        }
+    }
+
+    private static boolean isPaged(Pageable pageable) {
+        return pageable != null && pageable.getMaxResults() > 0;
+    }
+
+    private PagedSql pagedSql(Pageable pageable) {
+        return pageable.getFirstResult() > 0 ? offsetPage : firstPage;
+    }
+
+    private enum SlotKind { FIRST, MAX, FIRST_PLUS_MAX }
+
+    private static final class LimitSlot {
+        private final SlotKind kind;
+        private final int      adjust;
+
+        private LimitSlot(SlotKind kind, int adjust) {
+            this.kind = kind;
+            this.adjust = adjust;
+        }
+
+        private static LimitSlot classify(Object value, int first, int max) {
+            if (value instanceof Number) {
+                long v = ((Number) value).longValue();
+                if (Math.abs(v - first - max) <= MAX_ADJUST) {
+                    return new LimitSlot(SlotKind.FIRST_PLUS_MAX, (int) (v - first - max));
+                }
+                if (Math.abs(v - first) <= MAX_ADJUST) {
+                    return new LimitSlot(SlotKind.FIRST, (int) (v - first));
+                }
+                if (Math.abs(v - max) <= MAX_ADJUST) {
+                    return new LimitSlot(SlotKind.MAX, (int) (v - max));
+                }
+            }
+            throw new DBUserStorageException("Unsupported limit parameter " + value, null);
+        }
+
+        private long value(int first, int max) {
+            switch (kind) {
+                case FIRST:
+                    return first + adjust;
+                case MAX:
+                    return max + adjust;
+                default:
+                    return (long) first + max + adjust;
+            }
+        }
+    }
+
+    private static final class PagedSql {
+        private final String      sql;
+        // One entry per placeholder, in statement order: null for a user parameter, the limit slot otherwise.
+        private final LimitSlot[] slots;
+
+        private PagedSql(String sql, LimitSlot[] slots) {
+            this.sql = sql;
+            this.slots = slots;
+        }
+
+        private static PagedSql compile(String query, RDBMS rdbms, int probeFirst) {
+            try {
+                return doCompile(query, rdbms, probeFirst);
+            } catch (RuntimeException e) {
+                // Queries the limit handler cannot rewrite (and that are never paged, like lookups) fail only if paged.
+                return null;
+            }
+        }
+
+        private static PagedSql doCompile(String query, RDBMS rdbms, int probeFirst) {
+            Map<Integer, Object> parameters = new HashMap<>();
+            String processed = PagingUtil.processSql(query, probeFirst, PROBE_MAX, rdbms, parameters);
+            // A different probe must yield the very same SQL, otherwise the dialect inlines the values.
+            if (!processed.equals(PagingUtil.processSql(query, probeFirst * 2, PROBE_MAX * 2, rdbms, new HashMap<>()))) {
+                return null;
+            }
+            StringBuilder   sql   = new StringBuilder(processed.length());
+            List<LimitSlot> slots = new ArrayList<>();
+            int             limit = 0;
+            for (int i = 0; i < processed.length(); i++) {
+                char ch = processed.charAt(i);
+                if (ch == '?' && i + 1 < processed.length() && processed.charAt(i + 1) == '?') {
+                    slots.add(null);
+                    i++;
+                } else if (ch == '?') {
+                    if (++limit > parameters.size()) {
+                        return null;
+                    }
+                    slots.add(LimitSlot.classify(parameters.get(limit), probeFirst, PROBE_MAX));
+                }
+                sql.append(ch);
+            }
+            if (limit != parameters.size()) {
+                return null;
+            }
+            return new PagedSql(sql.toString(), slots.toArray(new LimitSlot[0]));
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package br.com.cmabreu.dbuserprovider.util;
+
+/**
+ * Query parameter bound with an explicit JDBC type ({@link java.sql.Types}) rather than the type the driver infers
+ * from the Java value, so the database compares it to the column without converting the column.
+ */
+public final class SqlParameter {
+
+    private final Object value;
+    private final int    sqlType;
+
+    public SqlParameter(Object value, int sqlType) {
+        this.value = value;
+        this.sqlType = sqlType;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public int getSqlType() {
+        return sqlType;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,192 @@
+package br.com.cmabreu.dbuserprovider;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+
+import br.com.cmabreu.dbuserprovider.persistence.SearchStrategy;
+
+/**
+ * Many threads creating sessions and validating configurations of the same and of different components, against a
+ * live database. Every component must end with exactly one configuration in service and one pool: each
+ * configuration in service runs one Bloom filter and one search index rebuild thread, each pool holds one
+ * connection, and each validation of an existing component swaps its pools exactly once.
+ */
+public class DBUserStorageProviderFactoryConcurrencyTest {
+
+    private static final int      THREADS       = 12;
+    private static final int      ITERATIONS    = 30;
+    private static final String[] SHARED_IDS    = { "shared-0", "shared-1", "shared-2" };
+    private static final long     SETTLE_MILLIS = 10_000;
+
+    private TestDatabase                 database;
+    private DBUserStorageProviderFactory factory;
+
+    @Before
+    public void open() throws Exception {
+        database = new TestDatabase("concurrency");
+        factory = new DBUserStorageProviderFactory();
+    }
+
+    @After
+    public void close() {
+        factory.close();
+        database.close();
+    }
+
+    // One pool per component: the application name makes the pool key of each component unique.
+    private ComponentModel model(String id) {
+        ComponentModel model = database.model(id);
+        model.put("url", database.getUrl() + "?ApplicationName=" + (id == null ? "new" : id));
+        model.put("bloomFilterRefresh", 3600L);
+        model.put("searchIndexRefresh", 3600L);
+        model.put("searchStrategy", SearchStrategy.PREFIX.getDesc());
+        model.put("searchColumns", "username");
+        return model;
+    }
+
+    private static List<String> ids() {
+        List<String> ids = new ArrayList<>();
+        for (String id : SHARED_IDS) {
+            ids.add(id);
+        }
+        for (int t = 0; t < THREADS; t++) {
+            ids.add("thread-" + t);
+        }
+        return ids;
+    }
+
+    @Test
+    public void concurrentCreatesConfigureEachComponentOnce() throws Exception {
+        run(t -> {
+            for (int i = 0; i < ITERATIONS; i++) {
+                factory.create(null, model(SHARED_IDS[(t + i) % SHARED_IDS.length]));
+                factory.create(null, model("thread-" + t));
+            }
+        });
+
+        assertOneConfigurationAndPoolPer(ids());
+        for (String id : ids()) {
+            assertEquals(id, 0L, swapCount(id));
+        }
+        assertRemovedWithoutLeaks(ids());
+    }
+
+    @Test
+    public void concurrentValidationsReplaceTheConfigurationInService() throws Exception {
+        for (String id : ids()) {
+            factory.create(null, model(id));
+        }
+        Map<String, AtomicInteger> validations = new ConcurrentHashMap<>();
+        run(t -> {
+            for (int i = 0; i < ITERATIONS; i++) {
+                String id = i % 2 == 0 ? SHARED_IDS[(t + i) % SHARED_IDS.length] : "thread-" + t;
+                switch (i % 3) {
+                    case 0:
+                        factory.validateConfiguration(null, null, model(id));
+                        validations.computeIfAbsent(id, key -> new AtomicInteger()).incrementAndGet();
+                        break;
+                    case 1:
+                        factory.create(null, model(id));
+                        break;
+                    default:
+                        // a component being created: validated without being put in service
+                        factory.validateConfiguration(null, null, model(null));
+                }
+            }
+        });
+
+        assertOneConfigurationAndPoolPer(ids());
+        for (String id : ids()) {
+            AtomicInteger validated = validations.get(id);
+            assertEquals("replaces of " + id, validated == null ? 0 : validated.get(), swapCount(id));
+        }
+        assertRemovedWithoutLeaks(ids());
+    }
+
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    private static void run(Worker worker) throws Exception {
+        ExecutorService      executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch       start    = new CountDownLatch(1);
+        List<Future<Object>> results  = new ArrayList<>();
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                results.add(executor.submit((Callable<Object>) () -> {
+                    start.await();
+                    worker.run(thread);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<Object> result : results) {
+                result.get(2, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void assertOneConfigurationAndPoolPer(List<String> ids) throws Exception {
+        awaitEquals("Bloom filter rebuild threads", ids.size(), () -> threads("cmabreu-bloom-rebuild"));
+        awaitEquals("search index threads", ids.size(), () -> threads("cmabreu-search-index"));
+        awaitEquals("database connections", ids.size(), this::sessions);
+    }
+
+    private void assertRemovedWithoutLeaks(List<String> ids) throws Exception {
+        for (String id : ids) {
+            factory.preRemove(null, null, model(id));
+        }
+        awaitEquals("Bloom filter rebuild threads", 0, () -> threads("cmabreu-bloom-rebuild"));
+        awaitEquals("search index threads", 0, () -> threads("cmabreu-search-index"));
+        awaitEquals("database connections", 0, this::sessions);
+    }
+
+    private int sessions() {
+        try {
+            return database.getSessionCount();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int threads(String name) {
+        return (int) Thread.getAllStackTraces().keySet().stream().filter(thread -> thread.isAlive() && name.equals(thread.getName())).count();
+    }
+
+    private static long swapCount(String id) throws Exception {
+        ObjectName name = new ObjectName("br.com.cmabreu.dbuserprovider:type=DataSourceProvider,component=" + ObjectName.quote(id));
+        return (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "SwapCount");
+    }
+
+    // Pools and threads are closed asynchronously: waits for the count to settle before asserting it.
+    private static void awaitEquals(String message, int expected, IntSupplier actual) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        while (actual.getAsInt() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(message, expected, actual.getAsInt());
+    }
+}
@@ -0,0 +1,110 @@
+package br.com.cmabreu.dbuserprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.component.ComponentValidationException;
+
+import br.com.cmabreu.dbuserprovider.persistence.RDBMS;
+import br.com.cmabreu.dbuserprovider.persistence.SearchStrategy;
+
+/**
+ * Configuration registry of the factory, without a database: every configuration points to a closed port, so it is
+ * rejected when its pool is created, after everything else was built.
+ */
+public class DBUserStorageProviderFactoryTest {
+
+    private static final int THREADS    = 8;
+    private static final int ITERATIONS = 5;
+
+    private final DBUserStorageProviderFactory factory = new DBUserStorageProviderFactory();
+
+    @After
+    public void close() {
+        factory.close();
+    }
+
+    private static ComponentModel model(String id) {
+        ComponentModel model = new ComponentModel();
+        model.setId(id);
+        model.setName("test-" + id);
+        model.put("url", "jdbc:postgresql://127.0.0.1:1/users");
+        model.put("rdbms", RDBMS.POSTGRESQL.getDesc());
+        model.put("user", "keycloak");
+        model.put("password", "secret");
+        model.put("connectionTimeout", 250L);
+        model.put("validationTimeout", 250L);
+        model.put("listAll", "select \"id\", \"username\", \"email\" from users");
+        model.put("findBySearchTerm", "select \"id\", \"username\", \"email\" from users where \"username\" like (?)");
+        model.put("hashFunction", "SHA-1");
+        return model;
+    }
+
+    private static ComponentValidationException validate(DBUserStorageProviderFactory factory, ComponentModel model) {
+        try {
+            factory.validateConfiguration(null, null, model);
+        } catch (ComponentValidationException e) {
+            return e;
+        }
+        fail("configuration pointing to a closed port was accepted");
+        return null;
+    }
+
+    @Test
+    public void newComponentWithoutIdIsValidated() {
+        ComponentValidationException e = validate(factory, model(null));
+
+        assertNotNull(e.getMessage());
+        assertFalse("validation failed on the missing id", e.getCause() instanceof NullPointerException);
+    }
+
+    @Test
+    public void newComponentWithoutIdReportsConfigurationErrors() {
+        ComponentModel model = model(null);
+        model.put("searchStrategy", SearchStrategy.MYSQL_FULL_TEXT.getDesc());
+
+        ComponentValidationException e = validate(factory, model);
+
+        assertTrue(e.getMessage(), e.getMessage().contains(SearchStrategy.MYSQL_FULL_TEXT.getDesc()));
+    }
+
+    @Test
+    public void concurrentValidationsOfNewAndExistingComponents() throws Exception {
+        ExecutorService       executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Integer>> results  = new ArrayList<>();
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                // half of the threads validate new components, the others share a few existing ones
+                String id = t % 2 == 0 ? null : "component-" + (t % 3);
+                results.add(executor.submit((Callable<Integer>) () -> {
+                    int rejected = 0;
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        ComponentValidationException e = validate(factory, model(id));
+                        assertFalse("validation failed on the missing id", e.getCause() instanceof NullPointerException);
+                        rejected++;
+                    }
+                    return rejected;
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(ITERATIONS, (int) result.get(2, TimeUnit.MINUTES));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
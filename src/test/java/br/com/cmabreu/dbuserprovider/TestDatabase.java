@@ -0,0 +1,95 @@
+package br.com.cmabreu.dbuserprovider;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.h2.tools.Server;
+import org.keycloak.component.ComponentModel;
+
+import br.com.cmabreu.dbuserprovider.persistence.RDBMS;
+
+/**
+ * In-memory H2 database served over the PostgreSQL protocol, so components reach it with the PostgreSQL driver and
+ * dialect exactly as they would a real server. It holds a users table with a few rows.
+ */
+public final class TestDatabase implements Closeable {
+
+    public static final String USER     = "keycloak";
+    public static final String PASSWORD = "secret";
+
+    private final String     name;
+    private final Connection admin;
+    private final Server     server;
+
+    public TestDatabase(String name) throws SQLException {
+        this.name = name;
+        // opened first, it creates the database with the component credentials and keeps it alive
+        this.admin = DriverManager.getConnection("jdbc:h2:mem:" + name + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1", USER, PASSWORD);
+        try (Statement statement = admin.createStatement()) {
+            statement.execute("create table users (id integer primary key, username varchar(64) not null, email varchar(128), password varchar(128))");
+            statement.execute("insert into users values (1, 'alice', 'alice@example.com', null), (2, 'bob', 'bob@example.com', null), (3, 'carol', null, null)");
+        }
+        this.server = Server.createPgServer("-pgPort", "0").start();
+    }
+
+    public String getUrl() {
+        return "jdbc:postgresql://127.0.0.1:" + server.getPort() + "/mem:" + name;
+    }
+
+    /**
+     * @return a direct connection to the database, for setting it up and inspecting it
+     */
+    public Connection getAdminConnection() {
+        return admin;
+    }
+
+    /**
+     * @return the number of connections currently open on the database, this one excluded
+     */
+    public int getSessionCount() throws SQLException {
+        try (Statement statement = admin.createStatement();
+             ResultSet rs = statement.executeQuery("select count(*) from information_schema.sessions")) {
+            rs.next();
+            return rs.getInt(1) - 1;
+        }
+    }
+
+    /**
+     * @return the configuration of a component reading the users table, with a pool of a single connection
+     */
+    public ComponentModel model(String id) {
+        ComponentModel model = new ComponentModel();
+        model.setId(id);
+        model.setName("test-" + id);
+        model.put("url", getUrl());
+        model.put("rdbms", RDBMS.POSTGRESQL.getDesc());
+        model.put("user", USER);
+        model.put("password", PASSWORD);
+        model.put("maxPoolSize", 1);
+        model.put("minIdle", 1);
+        model.put("connectionTimeout", 5000L);
+        model.put("drainTimeout", 0L);
+        model.put("count", "select count(*) from users");
+        model.put("listAll", "select \"id\", \"username\", \"email\" from users");
+        model.put("findById", "select \"id\", \"username\", \"email\" from users where \"id\" = ?");
+        model.put("findByUsername", "select \"id\", \"username\", \"email\" from users where \"username\" = ?");
+        model.put("findBySearchTerm", "select \"id\", \"username\", \"email\" from users where \"username\" like (?)");
+        model.put("findPasswordHash", "select \"password\" from users where \"username\" = ?");
+        model.put("hashFunction", "SHA-1");
+        return model;
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+        try (Statement statement = admin.createStatement()) {
+            statement.execute("shutdown");
+        } catch (SQLException e) {
+            // the in-memory database is gone with the JVM anyway
+        }
+    }
+}
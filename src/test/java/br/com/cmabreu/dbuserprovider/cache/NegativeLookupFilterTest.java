@@ -0,0 +1,96 @@
+package br.com.cmabreu.dbuserprovider.cache;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import br.com.cmabreu.dbuserprovider.model.ColumnHeader;
+import br.com.cmabreu.dbuserprovider.model.UserRow;
+
+/**
+ * Misses and Bloom filter checks only apply to lookups of the kind they were recorded or built for: a username that
+ * was not found may still be somebody's email, and the reverse.
+ */
+public class NegativeLookupFilterTest {
+
+    private static final long SETTLE_MILLIS = 10_000;
+
+    private NegativeLookupFilter filter;
+
+    @After
+    public void close() {
+        if (filter != null) {
+            filter.close();
+        }
+    }
+
+    private static List<UserRow> users(String select) throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:;DATABASE_TO_LOWER=TRUE");
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(select)) {
+            ColumnHeader  header = ColumnHeader.of(rs.getMetaData());
+            List<UserRow> rows   = new ArrayList<>();
+            while (rs.next()) {
+                rows.add(UserRow.read(rs, header));
+            }
+            return rows;
+        }
+    }
+
+    private void start(List<UserRow> users) throws InterruptedException {
+        filter = new NegativeLookupFilter(300, 3600, 0.01);
+        filter.start(users::stream, users::size);
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        while (filter.getLastRebuildTime() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue("the filter was not built", filter.getLastRebuildTime() > 0);
+    }
+
+    @Test
+    public void missesAreKeptPerKind() {
+        filter = new NegativeLookupFilter(300, 0, 0.01);
+        filter.recordLookup(LoginKind.USERNAME, "alice@example.com", false);
+        assertTrue(filter.isDefinitelyUnknown(LoginKind.USERNAME, "Alice@Example.com"));
+        assertFalse(filter.isDefinitelyUnknown(LoginKind.EMAIL, "alice@example.com"));
+
+        filter.recordLookup(LoginKind.EMAIL, "bob", false);
+        assertTrue(filter.isDefinitelyUnknown(LoginKind.EMAIL, "bob"));
+        assertFalse(filter.isDefinitelyUnknown(LoginKind.USERNAME, "bob"));
+
+        filter.recordLookup(LoginKind.USERNAME, "alice@example.com", true);
+        assertFalse(filter.isDefinitelyUnknown(LoginKind.USERNAME, "alice@example.com"));
+    }
+
+    @Test
+    public void emailsAreOnlyCheckedAgainstEmails() throws Exception {
+        start(users("select * from (values ('alice', 'alice@example.com'), ('bob', null)) as u(username, email)"));
+
+        assertFalse(filter.isDefinitelyUnknown(LoginKind.USERNAME, "alice"));
+        assertFalse(filter.isDefinitelyUnknown(LoginKind.USERNAME, "alice@example.com"));
+        assertTrue(filter.isDefinitelyUnknown(LoginKind.USERNAME, "mallory"));
+
+        assertFalse(filter.isDefinitelyUnknown(LoginKind.EMAIL, "alice@example.com"));
+        // a username, not an email: unknown to the find by email query
+        assertTrue(filter.isDefinitelyUnknown(LoginKind.EMAIL, "bob"));
+    }
+
+    @Test
+    public void withoutEmailsOnlyPlainUsernamesAreChecked() throws Exception {
+        start(users("select * from (values ('alice'), ('bob')) as u(username)"));
+
+        assertTrue(filter.isDefinitelyUnknown(LoginKind.USERNAME, "mallory"));
+        assertFalse(filter.isDefinitelyUnknown(LoginKind.USERNAME, "alice@example.com"));
+        assertFalse(filter.isDefinitelyUnknown(LoginKind.EMAIL, "mallory@example.com"));
+    }
+}
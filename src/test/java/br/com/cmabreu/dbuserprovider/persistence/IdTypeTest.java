@@ -0,0 +1,181 @@
+package br.com.cmabreu.dbuserprovider.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Locale;
+import java.util.UUID;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.cmabreu.dbuserprovider.TestDatabase;
+import br.com.cmabreu.dbuserprovider.util.QueryTemplate;
+import br.com.cmabreu.dbuserprovider.util.SqlParameter;
+
+/**
+ * The id lookup binds the id with the SQL type of the column, so the database seeks the primary key instead of
+ * converting the column of every row. Each id type gets a table keyed by a column of that type, queried over the
+ * PostgreSQL driver and dialect: the lookup must find its user and its plan must use the primary key index.
+ */
+public class IdTypeTest {
+
+    private static final int    ROWS        = 1000;
+    private static final String UUID_PREFIX = "00000000-0000-0000-0000-";
+
+    private static TestDatabase database;
+    private static Connection   connection;
+
+    @BeforeClass
+    public static void open() throws SQLException {
+        database = new TestDatabase("id_types");
+        for (IdType type : IdType.values()) {
+            try (Statement statement = database.getAdminConnection().createStatement()) {
+                statement.execute("create table " + table(type) + " (id " + columnType(type) + " primary key, username varchar(64))");
+                statement.execute("insert into " + table(type) + " select " + idExpression(type) + ", 'user' || x from system_range(1, " + ROWS + ") as r(x)");
+            }
+        }
+        connection = DriverManager.getConnection(database.getUrl(), TestDatabase.USER, TestDatabase.PASSWORD);
+    }
+
+    @AfterClass
+    public static void close() throws SQLException {
+        connection.close();
+        database.close();
+    }
+
+    private static String table(IdType type) {
+        return "users_" + type.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static String columnType(IdType type) {
+        switch (type) {
+            case LONG:
+                return "bigint";
+            case UUID:
+                return "uuid";
+            case VARCHAR:
+                return "varchar(64)";
+            case NVARCHAR:
+                return "national character varying(64)";
+            case INTEGER:
+            default:
+                return "integer";
+        }
+    }
+
+    private static String idExpression(IdType type) {
+        switch (type) {
+            case LONG:
+                return "x + 10000000000";
+            case UUID:
+                return "cast('" + UUID_PREFIX + "' || lpad(x, 12, '0') as uuid)";
+            case VARCHAR:
+            case NVARCHAR:
+                return "'user-' || x";
+            case INTEGER:
+            default:
+                return "x";
+        }
+    }
+
+    // The id of the 42nd row, as Keycloak passes it around.
+    private static String id(IdType type) {
+        switch (type) {
+            case LONG:
+                return "10000000042";
+            case UUID:
+                return UUID_PREFIX + "000000000042";
+            case VARCHAR:
+            case NVARCHAR:
+                return "user-42";
+            case INTEGER:
+            default:
+                return "42";
+        }
+    }
+
+    private static int expectedSqlType(IdType type) {
+        switch (type) {
+            case LONG:
+                return Types.BIGINT;
+            case UUID:
+                return Types.OTHER;
+            case VARCHAR:
+            case NVARCHAR:
+                return Types.VARCHAR;
+            case INTEGER:
+            default:
+                return Types.INTEGER;
+        }
+    }
+
+    private static QueryTemplate findById(IdType type) {
+        return QueryTemplate.compile("select \"id\", \"username\" from " + table(type) + " where \"id\" = ?", RDBMS.POSTGRESQL);
+    }
+
+    @Test
+    public void idIsBoundWithTheColumnType() {
+        for (IdType type : IdType.values()) {
+            SqlParameter parameter = type.binder(RDBMS.POSTGRESQL).apply(id(type));
+            assertEquals(type.toString(), expectedSqlType(type), parameter.getSqlType());
+        }
+        assertTrue(IdType.UUID.binder(RDBMS.POSTGRESQL).apply(id(IdType.UUID)).getValue() instanceof UUID);
+        assertTrue(IdType.LONG.binder(RDBMS.POSTGRESQL).apply(id(IdType.LONG)).getValue() instanceof Long);
+    }
+
+    @Test
+    public void lookupFindsTheUser() throws SQLException {
+        for (IdType type : IdType.values()) {
+            QueryTemplate template = findById(type);
+            try (PreparedStatement statement = connection.prepareStatement(template.getSql())) {
+                template.bind(statement, null, type.binder(RDBMS.POSTGRESQL).apply(id(type)));
+                try (ResultSet rs = statement.executeQuery()) {
+                    assertTrue(type.toString(), rs.next());
+                    assertEquals(type.toString(), "user42", rs.getString("username"));
+                    assertFalse(type.toString(), rs.next());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void lookupSeeksThePrimaryKey() throws SQLException {
+        for (IdType type : IdType.values()) {
+            QueryTemplate template = findById(type);
+            String        plan     = plan(template.getSql(), template, type.binder(RDBMS.POSTGRESQL).apply(id(type)));
+            assertTrue(type + ": " + plan, plan.contains("PRIMARY_KEY"));
+            assertFalse(type + ": " + plan, plan.contains("tableScan"));
+        }
+    }
+
+    @Test
+    public void convertedColumnIsScanned() throws SQLException {
+        // what the plans above rule out: the id compared once the column of every row is converted
+        QueryTemplate converted = QueryTemplate.compile("select \"id\", \"username\" from " + table(IdType.INTEGER) + " where cast(\"id\" as varchar) = ?", RDBMS.POSTGRESQL);
+        String        plan      = plan(converted.getSql(), converted, new SqlParameter(id(IdType.INTEGER), Types.VARCHAR));
+        assertTrue(plan, plan.contains("tableScan"));
+    }
+
+    private static String plan(String sql, QueryTemplate template, SqlParameter id) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("explain " + sql)) {
+            template.bind(statement, null, id);
+            try (ResultSet rs = statement.executeQuery()) {
+                StringBuilder plan = new StringBuilder();
+                while (rs.next()) {
+                    plan.append(rs.getString(1));
+                }
+                return plan.toString();
+            }
+        }
+    }
+}
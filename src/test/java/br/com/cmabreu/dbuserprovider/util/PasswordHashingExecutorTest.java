@@ -0,0 +1,84 @@
+package br.com.cmabreu.dbuserprovider.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import br.com.cmabreu.dbuserprovider.DBUserStorageUnavailableException;
+
+/**
+ * A verification the executor cannot complete must not look like a wrong password.
+ */
+public class PasswordHashingExecutorTest {
+
+    private final CountDownLatch  release  = new CountDownLatch(1);
+    private final ExecutorService callers  = Executors.newCachedThreadPool();
+    private PasswordHashingExecutor executor;
+
+    @After
+    public void close() {
+        release.countDown();
+        callers.shutdownNow();
+        if (executor != null) {
+            executor.close();
+        }
+    }
+
+    // A verification holding its worker until the test releases it.
+    private boolean blocked() {
+        try {
+            return release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Test
+    public void verificationResultIsReturned() {
+        executor = new PasswordHashingExecutor("test", 1, 1, 1000);
+
+        assertTrue(executor.verify(() -> true));
+        assertFalse(executor.verify(() -> false));
+    }
+
+    @Test
+    public void timeoutIsReportedAsUnavailable() {
+        executor = new PasswordHashingExecutor("test", 1, 1, 100);
+
+        try {
+            executor.verify(this::blocked);
+            fail("a verification past its deadline was answered");
+        } catch (DBUserStorageUnavailableException e) {
+            assertEquals(1, executor.getTimedOutCount());
+        }
+    }
+
+    @Test
+    public void rejectionIsReportedAsUnavailable() throws Exception {
+        executor = new PasswordHashingExecutor("test", 1, 1, 0);
+        // one verification on the worker, one in the queue: the third one is rejected
+        callers.submit(() -> executor.verify(this::blocked));
+        callers.submit(() -> executor.verify(this::blocked));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getQueueDepth() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        try {
+            executor.verify(() -> true);
+            fail("a verification beyond the queue capacity was answered");
+        } catch (DBUserStorageUnavailableException e) {
+            assertEquals(1, executor.getRejectedCount());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package br.com.cmabreu.dbuserprovider.util;
+
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+import br.com.cmabreu.dbuserprovider.persistence.RDBMS;
+import br.com.cmabreu.dbuserprovider.util.PagingUtil.Pageable;
+
+/**
+ * Cost of preparing one paged query, per dialect: {@link QueryTemplate#getSql(Pageable)} and
+ * {@link QueryTemplate#bind} against {@link PagingUtil#formatScriptWithPageable}, which every paged query went
+ * through before templates. Not part of the regular build (surefire only picks up *Test classes), run it with
+ * <pre>mvn test -Dtest=QueryTemplateBenchmark</pre>
+ */
+public class QueryTemplateBenchmark {
+
+    private static final int WARM_UP_ROUNDS = 3;
+    private static final int ROUNDS         = 5;
+    private static final int OPERATIONS     = 20_000;
+
+    // Keeps the results alive so the loops are not optimised away.
+    private long sink;
+
+    @Test
+    public void templateAgainstFormattedQuery() throws SQLException {
+        System.out.println(String.format("%-28s %14s %14s %8s", "RDBMS", "format ns/op", "template ns/op", "speedup"));
+        for (RDBMS rdbms : RDBMS.values()) {
+            for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+                formatted(rdbms);
+                templated(rdbms);
+            }
+            double formatted = Double.MAX_VALUE;
+            double templated = Double.MAX_VALUE;
+            for (int i = 0; i < ROUNDS; i++) {
+                formatted = Math.min(formatted, formatted(rdbms));
+                templated = Math.min(templated, templated(rdbms));
+            }
+            System.out.println(String.format("%-28s %14.0f %14.0f %7.1fx", rdbms.getDesc(), formatted, templated, formatted / templated));
+        }
+        assertTrue(sink != 0);
+    }
+
+    // Best case nanoseconds per operation of a round over every query and page.
+    private double formatted(RDBMS rdbms) {
+        long started = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            String   query    = QueryTemplateTest.QUERIES[i % QueryTemplateTest.QUERIES.length];
+            Pageable pageable = QueryTemplateTest.PAGES[i % QueryTemplateTest.PAGES.length];
+            sink += PagingUtil.formatScriptWithPageable(query, pageable, rdbms).length();
+        }
+        return (System.nanoTime() - started) / (double) OPERATIONS;
+    }
+
+    private double templated(RDBMS rdbms) throws SQLException {
+        QueryTemplate[] templates = new QueryTemplate[QueryTemplateTest.QUERIES.length];
+        for (int i = 0; i < templates.length; i++) {
+            templates[i] = QueryTemplate.compile(QueryTemplateTest.QUERIES[i], rdbms);
+        }
+        long started = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            QueryTemplate template = templates[i % templates.length];
+            Pageable      pageable = QueryTemplateTest.PAGES[i % QueryTemplateTest.PAGES.length];
+            sink += template.getSql(pageable).length() + QueryTemplateTest.bind(template, pageable).size();
+        }
+        return (System.nanoTime() - started) / (double) OPERATIONS;
+    }
+}
@@ -0,0 +1,93 @@
+package br.com.cmabreu.dbuserprovider.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+import org.junit.Test;
+
+import br.com.cmabreu.dbuserprovider.persistence.RDBMS;
+import br.com.cmabreu.dbuserprovider.util.PagingUtil.Pageable;
+
+/**
+ * A compiled template must run the same statement as formatting the query for each call did: the SQL of
+ * {@link QueryTemplate#getSql(Pageable)} with its binds filled in equals the SQL of
+ * {@link PagingUtil#formatScriptWithPageable} with the query parameter in every user placeholder.
+ */
+public class QueryTemplateTest {
+
+    static final String[] QUERIES = {
+            "select \"id\", \"username\", \"email\" from users",
+            "select \"id\", \"username\", \"email\" from users where \"username\" like (?) or \"email\" like (?)",
+            "select \"id\", \"username\" from users where upper(\"username\") like (?) order by \"username\"",
+    };
+
+    static final Pageable[] PAGES = {
+            new Pageable(0, 10),
+            new Pageable(1, 1),
+            new Pageable(20, 10),
+            new Pageable(1000, 250),
+    };
+
+    private static final String PARAMETER = "'%ali%'";
+
+    @Test
+    public void pagedTemplateMatchesFormattedQuery() throws SQLException {
+        for (RDBMS rdbms : RDBMS.values()) {
+            for (String query : QUERIES) {
+                QueryTemplate template = QueryTemplate.compile(query, rdbms);
+                for (Pageable pageable : PAGES) {
+                    String expected = fill(PagingUtil.formatScriptWithPageable(query, pageable, rdbms), null);
+                    String actual   = fill(template.getSql(pageable), bind(template, pageable));
+                    assertEquals(rdbms + " " + pageable.getFirstResult() + "/" + pageable.getMaxResults(), expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void unpagedTemplateIsTheQuery() throws SQLException {
+        for (RDBMS rdbms : RDBMS.values()) {
+            for (String query : QUERIES) {
+                QueryTemplate template = QueryTemplate.compile(query, rdbms);
+                assertEquals(rdbms.toString(), fill(query, null), fill(template.getSql(null), bind(template, null)));
+            }
+        }
+    }
+
+    @Test
+    public void everyPageSharesOneStatement() {
+        for (RDBMS rdbms : RDBMS.values()) {
+            if (rdbms == RDBMS.IBMDB2) {
+                // DB2's limit handler writes the values into the SQL text
+                continue;
+            }
+            QueryTemplate template = QueryTemplate.compile(QUERIES[1], rdbms);
+            assertEquals(rdbms.toString(), template.getSql(new Pageable(20, 10)), template.getSql(new Pageable(1000, 250)));
+        }
+    }
+
+    static Map<Integer, Object> bind(QueryTemplate template, Pageable pageable) throws SQLException {
+        PreparedStatementParameterCollector statement = new PreparedStatementParameterCollector();
+        template.bind(statement, pageable, PARAMETER);
+        return statement.getParameters();
+    }
+
+    // The SQL with each placeholder replaced by its bound value, or by the query parameter when there are no binds.
+    private static String fill(String sql, Map<Integer, Object> binds) {
+        StringBuilder filled    = new StringBuilder(sql.length());
+        int           parameter = 0;
+        for (char ch : sql.toCharArray()) {
+            if (ch == '?') {
+                filled.append(binds == null ? PARAMETER : String.valueOf(binds.get(++parameter)));
+            } else {
+                filled.append(ch);
+            }
+        }
+        if (binds != null) {
+            assertEquals("every placeholder is bound in " + sql, parameter, binds.size());
+        }
+        return filled.toString();
+    }
+}